@@ -0,0 +1,247 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath;
+
+import java.awt.Color;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parser for CSS colors.
+ * Handles the CSS named colors, #rgb, #rgba, #rrggbb, #rrggbbaa, rgb(), rgba(),
+ * hsl() and hsla(), as well as the legacy 0xrrggbb and decimal forms.
+ * Named colors come from a precomputed table, other colors are kept in a small
+ * cache so that the same Color instance is returned for the same string.
+ * @author François Billioud
+ */
+public abstract class CSSColors {
+
+    /** Maximum number of parsed colors kept in the cache **/
+    private static final int CACHE_SIZE = 256;
+    /** Marker stored in the cache for strings that are not colors **/
+    private static final Color INVALID = new Color(0, true);
+
+    /** Colors recently parsed, in access order **/
+    private static final Map<String, Color> CACHE = new LinkedHashMap<String, Color>(CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Color> eldest) {
+            return size()>CACHE_SIZE;
+        }
+    };
+
+    /**
+     * Read a CSS color.
+     * @param value the CSS value, like "orange", "#f80" or "rgb(255, 128, 0)"
+     * @return the color, or null if the value is empty, inherited ("inherit", "currentColor")
+     * or not a valid color
+     */
+    public static Color parse(String value) {
+        if(value==null) {return null;}
+        if(isInherited(value)) {return null;}
+        String key = value.trim().toLowerCase(Locale.ROOT);
+        Color color = NAMED_COLORS.get(key);
+        if(color!=null) {return color;}
+        synchronized(CACHE) {color = CACHE.get(key);}
+        if(color==null) {
+            color = read(key);
+            if(color==null) {color = INVALID;}
+            synchronized(CACHE) {CACHE.put(key, color);}
+        }
+        return color==INVALID ? null : color;
+    }
+
+    /**
+     * Check if the value can be read as a color.
+     * @param value the CSS value
+     * @return true if {@link #parse(String)} would return a color
+     */
+    public static boolean isColor(String value) {
+        return parse(value)!=null;
+    }
+
+    /**
+     * Check if the value means that the color of the parent should be used.
+     * @param value the CSS value
+     * @return true for empty values, "inherit" and "currentColor"
+     */
+    public static boolean isInherited(String value) {
+        String v = value.trim();
+        return v.isEmpty() || v.equalsIgnoreCase("inherit") || v.equalsIgnoreCase("currentcolor");
+    }
+
+    /** Parse the lower case value, or return null if this is not a color **/
+    private static Color read(String value) {
+        try {
+            if(value.startsWith("#")) {return readHex(value.substring(1));}
+            if(value.endsWith(")")) {
+                int open = value.indexOf('(');
+                if(open<0) {return null;}
+                String function = value.substring(0, open).trim();
+                boolean[] percent = new boolean[4];
+                float[] args = readArguments(value.substring(open+1, value.length()-1), percent);
+                if(args==null) {return null;}
+                switch(function) {
+                    case "rgb" :
+                    case "rgba" : return readRGB(args, percent);
+                    case "hsl" :
+                    case "hsla" : return readHSL(args, percent);
+                    default : return null;
+                }
+            }
+            //Legacy syntaxes previously accepted through Long.decode: 0xff0000, 16711680
+            return new Color(Long.decode(value).intValue());
+        } catch(NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /** Read rrggbb, rgb, rrggbbaa or rgba **/
+    private static Color readHex(String hex) {
+        int n = hex.length();
+        if(n!=3 && n!=4 && n!=6 && n!=8) {return null;}
+        //parseLong would also accept a sign, or the digits of other scripts
+        for(int i=0; i<n; i++) {
+            char c = hex.charAt(i);
+            if(!(c>='0' && c<='9' || c>='a' && c<='f' || c>='A' && c<='F')) {return null;}
+        }
+        long v = Long.parseLong(hex, 16);
+        switch(n) {
+            case 3 : return new Color(dup((int)(v>>8)), dup((int)(v>>4)), dup((int)v));
+            case 4 : return new Color(dup((int)(v>>12)), dup((int)(v>>8)), dup((int)(v>>4)), dup((int)v));
+            case 6 : return new Color((int)v);
+            default : return new Color((int)(v>>24)&0xFF, (int)(v>>16)&0xFF, (int)(v>>8)&0xFF, (int)v&0xFF);
+        }
+    }
+    /** Turn the hexadecimal digit f into ff **/
+    private static int dup(int digit) {
+        digit &= 0xF;
+        return digit<<4|digit;
+    }
+
+    /**
+     * Split the arguments of a color function.
+     * Arguments can be separated by commas or spaces, the alpha channel being
+     * introduced by a slash in the space separated syntax.
+     * Percentages are returned as numbers between 0 and 1 and angles in degrees.
+     * @param percent filled with true for the arguments written as percentages
+     * @return the arguments, or null if there are not 3 or 4 of them
+     */
+    private static float[] readArguments(String args, boolean[] percent) {
+        String[] T = args.replace('/', ' ').replace(',', ' ').trim().split("\\s+");
+        if(T.length<3 || T.length>4) {return null;}
+        float[] result = new float[T.length];
+        for(int i=0; i<T.length; i++) {
+            String arg = T[i];
+            if(arg.endsWith("%")) {result[i] = Float.parseFloat(arg.substring(0, arg.length()-1))/100f; percent[i] = true;}
+            else if(arg.endsWith("deg")) {result[i] = Float.parseFloat(arg.substring(0, arg.length()-3));}
+            else if(arg.endsWith("grad")) {result[i] = Float.parseFloat(arg.substring(0, arg.length()-4))*0.9f;}
+            else if(arg.endsWith("rad")) {result[i] = (float)Math.toDegrees(Float.parseFloat(arg.substring(0, arg.length()-3)));}
+            else if(arg.endsWith("turn")) {result[i] = Float.parseFloat(arg.substring(0, arg.length()-4))*360f;}
+            else {result[i] = Float.parseFloat(arg);}
+        }
+        return result;
+    }
+
+    private static Color readRGB(float[] args, boolean[] percent) {
+        int[] channels = new int[4];
+        for(int i=0; i<3; i++) {
+            channels[i] = clamp(percent[i] ? args[i]*255f : args[i]);
+        }
+        channels[3] = args.length>3 ? clamp(args[3]*255f) : 255;
+        return new Color(channels[0], channels[1], channels[2], channels[3]);
+    }
+
+    private static Color readHSL(float[] args, boolean[] percent) {
+        if(!percent[1] || !percent[2]) {return null;}
+        double hue = ((args[0]%360.0)+360.0)%360.0/360.0;
+        double saturation = Math.max(0, Math.min(1, args[1]));
+        double lightness = Math.max(0, Math.min(1, args[2]));
+        double q = lightness<0.5 ? lightness*(1+saturation) : lightness+saturation-lightness*saturation;
+        double p = 2*lightness-q;
+        int alpha = args.length>3 ? clamp(args[3]*255f) : 255;
+        return new Color(clamp((float)(hueToRGB(p, q, hue+1.0/3)*255)), clamp((float)(hueToRGB(p, q, hue)*255)), clamp((float)(hueToRGB(p, q, hue-1.0/3)*255)), alpha);
+    }
+    private static double hueToRGB(double p, double q, double t) {
+        if(t<0) {t+=1;}
+        if(t>1) {t-=1;}
+        if(t<1.0/6) {return p+(q-p)*6*t;}
+        if(t<1.0/2) {return q;}
+        if(t<2.0/3) {return p+(q-p)*(2.0/3-t)*6;}
+        return p;
+    }
+    private static int clamp(float value) {
+        return Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    /** The CSS named colors **/
+    private static final Map<String, Color> NAMED_COLORS;
+    static {
+        Object[] table = {
+            "aliceblue", 0xF0F8FF, "antiquewhite", 0xFAEBD7, "aqua", 0x00FFFF, "aquamarine", 0x7FFFD4,
+            "azure", 0xF0FFFF, "beige", 0xF5F5DC, "bisque", 0xFFE4C4, "black", 0x000000,
+            "blanchedalmond", 0xFFEBCD, "blue", 0x0000FF, "blueviolet", 0x8A2BE2, "brown", 0xA52A2A,
+            "burlywood", 0xDEB887, "cadetblue", 0x5F9EA0, "chartreuse", 0x7FFF00, "chocolate", 0xD2691E,
+            "coral", 0xFF7F50, "cornflowerblue", 0x6495ED, "cornsilk", 0xFFF8DC, "crimson", 0xDC143C,
+            "cyan", 0x00FFFF, "darkblue", 0x00008B, "darkcyan", 0x008B8B, "darkgoldenrod", 0xB8860B,
+            "darkgray", 0xA9A9A9, "darkgreen", 0x006400, "darkgrey", 0xA9A9A9, "darkkhaki", 0xBDB76B,
+            "darkmagenta", 0x8B008B, "darkolivegreen", 0x556B2F, "darkorange", 0xFF8C00, "darkorchid", 0x9932CC,
+            "darkred", 0x8B0000, "darksalmon", 0xE9967A, "darkseagreen", 0x8FBC8F, "darkslateblue", 0x483D8B,
+            "darkslategray", 0x2F4F4F, "darkslategrey", 0x2F4F4F, "darkturquoise", 0x00CED1, "darkviolet", 0x9400D3,
+            "deeppink", 0xFF1493, "deepskyblue", 0x00BFFF, "dimgray", 0x696969, "dimgrey", 0x696969,
+            "dodgerblue", 0x1E90FF, "firebrick", 0xB22222, "floralwhite", 0xFFFAF0, "forestgreen", 0x228B22,
+            "fuchsia", 0xFF00FF, "gainsboro", 0xDCDCDC, "ghostwhite", 0xF8F8FF, "gold", 0xFFD700,
+            "goldenrod", 0xDAA520, "gray", 0x808080, "green", 0x008000, "greenyellow", 0xADFF2F,
+            "grey", 0x808080, "honeydew", 0xF0FFF0, "hotpink", 0xFF69B4, "indianred", 0xCD5C5C,
+            "indigo", 0x4B0082, "ivory", 0xFFFFF0, "khaki", 0xF0E68C, "lavender", 0xE6E6FA,
+            "lavenderblush", 0xFFF0F5, "lawngreen", 0x7CFC00, "lemonchiffon", 0xFFFACD, "lightblue", 0xADD8E6,
+            "lightcoral", 0xF08080, "lightcyan", 0xE0FFFF, "lightgoldenrodyellow", 0xFAFAD2, "lightgray", 0xD3D3D3,
+            "lightgreen", 0x90EE90, "lightgrey", 0xD3D3D3, "lightpink", 0xFFB6C1, "lightsalmon", 0xFFA07A,
+            "lightseagreen", 0x20B2AA, "lightskyblue", 0x87CEFA, "lightslategray", 0x778899, "lightslategrey", 0x778899,
+            "lightsteelblue", 0xB0C4DE, "lightyellow", 0xFFFFE0, "lime", 0x00FF00, "limegreen", 0x32CD32,
+            "linen", 0xFAF0E6, "magenta", 0xFF00FF, "maroon", 0x800000, "mediumaquamarine", 0x66CDAA,
+            "mediumblue", 0x0000CD, "mediumorchid", 0xBA55D3, "mediumpurple", 0x9370DB, "mediumseagreen", 0x3CB371,
+            "mediumslateblue", 0x7B68EE, "mediumspringgreen", 0x00FA9A, "mediumturquoise", 0x48D1CC, "mediumvioletred", 0xC71585,
+            "midnightblue", 0x191970, "mintcream", 0xF5FFFA, "mistyrose", 0xFFE4E1, "moccasin", 0xFFE4B5,
+            "navajowhite", 0xFFDEAD, "navy", 0x000080, "oldlace", 0xFDF5E6, "olive", 0x808000,
+            "olivedrab", 0x6B8E23, "orange", 0xFFA500, "orangered", 0xFF4500, "orchid", 0xDA70D6,
+            "palegoldenrod", 0xEEE8AA, "palegreen", 0x98FB98, "paleturquoise", 0xAFEEEE, "palevioletred", 0xDB7093,
+            "papayawhip", 0xFFEFD5, "peachpuff", 0xFFDAB9, "peru", 0xCD853F, "pink", 0xFFC0CB,
+            "plum", 0xDDA0DD, "powderblue", 0xB0E0E6, "purple", 0x800080, "rebeccapurple", 0x663399,
+            "red", 0xFF0000, "rosybrown", 0xBC8F8F, "royalblue", 0x4169E1, "saddlebrown", 0x8B4513,
+            "salmon", 0xFA8072, "sandybrown", 0xF4A460, "seagreen", 0x2E8B57, "seashell", 0xFFF5EE,
+            "sienna", 0xA0522D, "silver", 0xC0C0C0, "skyblue", 0x87CEEB, "slateblue", 0x6A5ACD,
+            "slategray", 0x708090, "slategrey", 0x708090, "snow", 0xFFFAFA, "springgreen", 0x00FF7F,
+            "steelblue", 0x4682B4, "tan", 0xD2B48C, "teal", 0x008080, "thistle", 0xD8BFD8,
+            "tomato", 0xFF6347, "turquoise", 0x40E0D0, "violet", 0xEE82EE, "wheat", 0xF5DEB3,
+            "white", 0xFFFFFF, "whitesmoke", 0xF5F5F5, "yellow", 0xFFFF00, "yellowgreen", 0x9ACD32
+        };
+        Map<String, Color> map = new HashMap<>(2*table.length);
+        for(int i=0; i<table.length; i+=2) {
+            map.put((String)table[i], new Color((Integer)table[i+1]));
+        }
+        //Keep the java constants for the colors that were already supported
+        map.put("black", Color.BLACK);
+        map.put("white", Color.WHITE);
+        map.put("blue", Color.BLUE);
+        map.put("red", Color.RED);
+        map.put("transparent", new Color(0, 0, 0, 0));
+        NAMED_COLORS = map;
+    }
+
+    private CSSColors() {throw new AssertionError("try to instanciate utilitary class");}
+}
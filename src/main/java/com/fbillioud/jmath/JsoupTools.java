@@ -16,8 +16,12 @@
 package com.fbillioud.jmath;
 
 import java.awt.Color;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.logging.Level;
@@ -25,6 +29,7 @@ import java.util.logging.Logger;
 import javax.swing.text.StyleConstants;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Comment;
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
@@ -47,7 +52,7 @@ public abstract class JsoupTools {
      * @return une HashMap contenant les couples objet/valeur trouvés dans le style ou une map vierge sinon
      */
     public static HashMap<String, String> getStyleMap(String styleAttr) {
-        HashMap<String, String> map = new HashMap<>();
+        HashMap<String, String> map = new LinkedHashMap<>();
         for(String s : styleAttr.split(";")) {
             String[] T = s.split(":");
             if(T.length>1) map.put(T[0].trim(), T[1].trim());
@@ -112,13 +117,25 @@ public abstract class JsoupTools {
      * @param value la valeur désirée, null pour retirer. La valeur sera ajouté au css via l'attribut styles
      */
     public static void setStyleAttribute(Element e, String cible, String value) {
+        Map<String, String> styles = getStyleMap(e.attr("style"));
+        putStyle(e, styles, cible, value);
+        setStyle(e, styles);
+    }
+
+    /**
+     * Même chose que {@link #setStyleAttribute(Element, String, String)}, mais
+     * travaille sur la map des styles déjà lue, sans réécrire l'attribut "style".
+     * @param e l'élément JSoup ciblé
+     * @param styles les styles actuels de l'élément, modifiés par l'appel
+     * @param cible la propriété ciblée
+     * @param value la valeur désirée, null pour retirer
+     */
+    private static void putStyle(Element e, Map<String, String> styles, String cible, String value) {
         String html = cible;String css = cible;
         if(HTMLtoCSSAttribute.containsKey(cible)) {css = HTMLtoCSSAttribute.get(cible);}
         if(HTMLtoCSSAttribute.containsValue(cible)) {html = HTMLtoCSSAttribute.getKey(cible);}
-        Map styles = getStyleMap(e.attr("style"));
         styles.remove(css);styles.remove(html);e.removeAttr(html);e.removeAttr(css);//nettoyage
         if(value!=null) {styles.put(css, value);}
-        setStyle(e, styles);
     }
 
     /**
@@ -129,7 +146,9 @@ public abstract class JsoupTools {
      * @param styles les styles à ajouter
      */
     public static void addStyles(Element e, Map<String, String> styles) {
-        for(Entry<String,String> entry : styles.entrySet()) {setStyleAttribute(e, entry.getKey(), entry.getValue());}
+        Map<String, String> current = getStyleMap(e.attr("style"));
+        for(Entry<String,String> entry : styles.entrySet()) {putStyle(e, current, entry.getKey(), entry.getValue());}
+        setStyle(e, current);
     }
 
     /**
@@ -139,25 +158,29 @@ public abstract class JsoupTools {
      * @return la chaine à insérer
      */
     private static String createStyleAttribute(Map<String, String> stylesMap) {
-        String styles = "";
-        for(String s : stylesMap.keySet()) {
-            styles+= s + ":" + stylesMap.get(s) + ";";
+        StringBuilder styles = new StringBuilder();
+        for(Entry<String, String> style : stylesMap.entrySet()) {
+            styles.append(style.getKey()).append(':').append(style.getValue()).append(';');
         }
-        return styles;
+        return styles.toString();
     }
 
     /**
      * récupère l'attribut color d'un Element.
-     * L'objet retourné est directement un objet Color
+     * L'objet retourné est directement un objet Color.
+     * Toutes les syntaxes CSS sont acceptées, voir {@link CSSColors#parse(String)}
      * @param e l'element considéré
-     * @return la couleur lue ou null
+     * @return la couleur lue ou null si absente ou invalide
      */
     public static Color getColor(Element e) {
         String couleur = getStyle(e, "color");
         if(couleur.isEmpty()) {couleur = getStyle(e, "mathcolor");}
         if(couleur.isEmpty()) {return null;}
-        Color color = (Color) CSSToJavaValue.get(couleur);
-        return color!=null ? color : new Color(Long.decode(couleur).intValue());
+        Color color = CSSColors.parse(couleur);
+        if(color==null && !CSSColors.isInherited(couleur)) {
+            Logger.getLogger(JsoupTools.class.getName()).log(Level.WARNING, "invalid color ignored: {0}", couleur);
+        }
+        return color;
     }
     
     /**
@@ -265,16 +288,13 @@ public abstract class JsoupTools {
         return String.format("#%06X", (0xFFFFFF & c.getRGB()));
     }
 
+    /**
+     * Retire tous les commentaires sous ce noeud.
+     * Le parcours est itératif et ne dépend donc pas de la profondeur du document.
+     * @param node la racine du parcours
+     */
     public static void removeComments(Node node) {
-        for (int i = 0; i < node.childNodes().size();) {
-            Node child = node.childNode(i);
-            if (child.nodeName().equals("#comment"))
-                child.remove();
-            else {
-                removeComments(child);
-                i++;
-            }
-        }
+        normalize(node, null);
     }
     
     /**
@@ -283,35 +303,106 @@ public abstract class JsoupTools {
      */
     public static void convertAttributesToCSS(Element e) {
         Map<String, String> styles = getStyleMap(e.attr("style"));
+        convertAttributesToCSS(e, styles);
+        setStyle(e, styles);
+    }
+    private static void convertAttributesToCSS(Element e, Map<String, String> styles) {
         for(Attribute attribute : e.attributes()) {
             String key = attribute.getKey();
-            String value = attribute.getValue();
             String css = HTMLtoCSSAttribute.getValue(key);
             if(css!=null) {
-                styles.put(css, value);
+                styles.put(css, attribute.getValue());
                 e.removeAttr(key);
             }
         }
-        setStyle(e, styles);
-        if(!getStyle(e, "size").isEmpty()) {setStyleAttribute(e, "font-size", getFontSize(e)+"pt");}//Conversion de la taille en pt
+        String size = styles.get("font-size");
+        if(size!=null) {styles.put("font-size", convertFontSize2PT(size)+"pt");}//Conversion de la taille en pt
     }
     
     /**
-     * Convertit les styles de l'élément ciblés en leurs équivalents HTML
+     * Convertit les styles de l'élément ciblés en leurs équivalents HTML.
+     * Les styles sans équivalent HTML restent dans l'attribut "style".
      * @param e l'élément à modifier
      */
     public static void convertStylesToHTMLAttribute(Element e) {
         Map<String, String> styles = getStyleMap(e.attr("style"));
-        for(Entry<String, String> style : styles.entrySet()) {
+        convertStylesToHTMLAttribute(e, styles);
+        setStyle(e, styles);
+    }
+    private static void convertStylesToHTMLAttribute(Element e, Map<String, String> styles) {
+        for(Iterator<Entry<String, String>> iter = styles.entrySet().iterator(); iter.hasNext();) {
+            Entry<String, String> style = iter.next();
             String attribute = HTMLtoCSSAttribute.getKey(style.getKey());
             if(attribute!=null) {
                 String value = style.getValue();
                 if(attribute.equals("size")) {value = convertPT2HTML(convertFontSize2PT(value))+"";}
                 e.attr(attribute, value);
+                iter.remove();
             }
-            styles.remove(style.getKey());
         }
-        setStyle(e, styles);
+    }
+
+    /**
+     * Normalise en un seul parcours tous les éléments sous ce noeud : les commentaires
+     * sont retirés, puis pour chaque élément l'attribut "style" est lu une seule fois,
+     * toutes les conversions sont appliquées et l'attribut est réécrit une seule fois.
+     * Le parcours est itératif et supporte donc des documents de n'importe quelle profondeur.
+     * @param root la racine du parcours, typiquement un Document
+     * @param toCSS true pour convertir les attributs HTML en CSS
+     * (voir {@link #convertAttributesToCSS(Element)}), false pour convertir
+     * les styles CSS en attributs HTML (voir {@link #convertStylesToHTMLAttribute(Element)})
+     * @param addedStyles des styles à ajouter à chaque élément, ou null
+     */
+    public static void normalizeStyles(Node root, boolean toCSS, Map<String, String> addedStyles) {
+        normalize(root, new StyleConversion(toCSS, addedStyles));
+    }
+
+    /** Les conversions à appliquer à chaque élément lors de {@link #normalize(Node, StyleConversion)} **/
+    private static class StyleConversion {
+        private final boolean toCSS;
+        private final Map<String, String> addedStyles;
+        private StyleConversion(boolean toCSS, Map<String, String> addedStyles) {
+            this.toCSS = toCSS;
+            this.addedStyles = addedStyles;
+        }
+        private void apply(Element e) {
+            String original = e.attr("style");
+            Map<String, String> styles = getStyleMap(original);
+            if(addedStyles!=null) {
+                for(Entry<String,String> entry : addedStyles.entrySet()) {putStyle(e, styles, entry.getKey(), entry.getValue());}
+            }
+            if(toCSS) {convertAttributesToCSS(e, styles);}
+            else {convertStylesToHTMLAttribute(e, styles);}
+            if(styles.isEmpty()) {
+                if(!original.isEmpty()) {e.removeAttr("style");}
+            } else {
+                String style = createStyleAttribute(styles);
+                if(!style.equals(original)) {e.attr("style", style);}
+            }
+        }
+    }
+
+    /**
+     * Parcours itératif des noeuds sous root, qui retire les commentaires.
+     * @param root la racine du parcours
+     * @param conversion la conversion à appliquer à chaque élément, ou null
+     */
+    private static void normalize(Node root, StyleConversion conversion) {
+        ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(root);
+        while(!stack.isEmpty()) {
+            Node node = stack.pop();
+            List<Node> children = node.childNodes();
+            for(int i=children.size()-1; i>=0; i--) {
+                Node child = children.get(i);
+                if(child instanceof Comment) {
+                    child.remove();
+                } else if(child instanceof Element) {
+                    stack.push(child);
+                }
+            }
+            if(conversion!=null && node instanceof Element && !(node instanceof Document)) {conversion.apply((Element) node);}
+        }
     }
 
     /**
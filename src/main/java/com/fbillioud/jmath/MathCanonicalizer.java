@@ -0,0 +1,397 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import org.jsoup.helper.StringUtil;
+import org.jsoup.nodes.Attribute;
+import org.jsoup.nodes.Attributes;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.parser.Tag;
+
+/**
+ * Compute the canonical form of a formula and its {@link MathKey}, in a single pass over
+ * the parsed tree, without serializing it.
+ * <p>
+ * {@link JsoupTools#parse(String)} already lowercases the names and decodes the entities.
+ * On top of that, the canonical form:
+ * <ul>
+ * <li>sorts the attributes by name, and drops the xmlns declarations,</li>
+ * <li>collapses the whitespace of the text and trims it, as the labels do,</li>
+ * <li>keeps a single space between two nodes separated by whitespace, as the rows display it,</li>
+ * <li>drops the comments,</li>
+ * <li>replaces the rows without attributes that only contain one element by this element, unless
+ * the row has sibling elements or the element is an operator.</li>
+ * </ul>
+ * The formulas that only differ by these are displayed the same way.
+ * @author François Billioud
+ */
+public abstract class MathCanonicalizer {
+    private MathCanonicalizer() {throw new AssertionError("This class should not be instantiated");}
+
+    /**
+     * The version of the canonical form. It changes when formulas displayed differently used to get
+     * the same key, so that the keys stored before can be told apart.
+     **/
+    public static final int VERSION = 2;
+
+    /** The tokens of the canonical form **/
+    private static final long OPEN = 1, CLOSE = 2, TEXT = 3, SPACE = 4;
+
+    private static final Comparator<Attribute> BY_KEY = new Comparator<Attribute>() {
+        @Override
+        public int compare(Attribute a, Attribute b) {return a.getKey().compareTo(b.getKey());}
+    };
+
+    /**
+     * Compute the key of a formula.
+     * @param mathML the MathML string
+     * @return the key of its canonical form
+     */
+    public static MathKey key(String mathML) {
+        return key(JsoupTools.parse(mathML).body().child(0));
+    }
+
+    /**
+     * Compute the key of a formula, without building its canonical form.
+     * @param root the root element of the formula
+     * @return the key of its canonical form
+     */
+    public static MathKey key(Element root) {
+        return canonicalize(root, false).getKey();
+    }
+
+    /**
+     * Compute the canonical form of a formula and its key.
+     * @param root the root element of the formula, which is not modified
+     * @return the canonical form and its key
+     */
+    public static Canonical canonicalize(Element root) {
+        return canonicalize(root, true);
+    }
+
+    /**
+     * Derive the key of a formula displayed with some parameters, like a font or a format.
+     * @param formula the key of the formula
+     * @param parameters the description of the parameters
+     * @return the key of the formula with these parameters
+     */
+    public static MathKey key(MathKey formula, String parameters) {
+        Hasher hasher = new Hasher();
+        hasher.putLong(formula.getHigh());
+        hasher.putLong(formula.getLow());
+        hasher.putString(parameters);
+        return hasher.finish();
+    }
+
+    /**
+     * Hash a string as it is, with the function of the keys. Nothing is normalized:
+     * this identifies a MathML string without parsing it.
+     * @param text the string to hash
+     * @return the hash of the string
+     */
+    public static MathKey hash(String text) {
+        Hasher hasher = new Hasher();
+        hasher.putString(text);
+        return hasher.finish();
+    }
+
+    private static Canonical canonicalize(Element root, boolean build) {
+        Hasher hasher = new Hasher();
+        Element canonicalRoot = null;
+        //The nodes to visit, and a CloseNode when an element is done. The stack avoids recursion on deep formulas.
+        Deque<Node> stack = new ArrayDeque<>();
+        //The copies of the elements being visited
+        Deque<Element> parents = new ArrayDeque<>();
+        //As in the rows, a blank is only displayed between two meaningful nodes
+        boolean meaningful = false, space = false;
+        stack.push(root);
+        while(!stack.isEmpty()) {
+            Node node = stack.pop();
+            if(node instanceof CloseNode) {
+                hasher.putLong(CLOSE);
+                if(build) {parents.pop();}
+                meaningful = true;
+                space = false;
+            } else if(node instanceof Element) {
+                if(space && meaningful) {putSpace(hasher, build ? parents.peek() : null);}
+                Element e = unwrap((Element) node);
+                Element copy = open(e, hasher, build);
+                if(build) {
+                    if(parents.isEmpty()) {canonicalRoot = copy;}
+                    else {parents.peek().appendChild(copy);}
+                    parents.push(copy);
+                }
+                stack.push(CloseNode.INSTANCE);
+                List<Node> children = e.childNodes();
+                for(int i=children.size()-1; i>=0; i--) {stack.push(children.get(i));}
+                meaningful = false;
+                space = false;
+            } else if(node instanceof TextNode) {
+                String text = ((TextNode) node).getWholeText();
+                int length = normalizedLength(text);
+                if(length==0) {space = true; continue;}
+                if(space && meaningful) {putSpace(hasher, build ? parents.peek() : null);}
+                hasher.putLong(TEXT);
+                hasher.putLong(length);
+                putNormalized(text, hasher);
+                hasher.endChars();
+                if(build) {parents.peek().appendChild(new TextNode(normalize(text, length), ""));}
+                meaningful = true;
+                space = false;
+            }
+            //Comments and other nodes are not displayed
+        }
+        if(build) {
+            //The document of the canonical form outputs it without adding spaces
+            Document document = JsoupTools.parse("");
+            document.body().appendChild(canonicalRoot);
+        }
+        return new Canonical(canonicalRoot, hasher.finish());
+    }
+
+    /** Add a displayed blank **/
+    private static void putSpace(Hasher hasher, Element parent) {
+        hasher.putLong(SPACE);
+        if(parent!=null) {parent.appendChild(new TextNode(" ", ""));}
+    }
+
+    /**
+     * Replace the redundant rows by their only element. The element must not get new siblings,
+     * nor be an operator, as a fence operator is displayed from the element that follows it.
+     **/
+    private static Element unwrap(Element e) {
+        if(!"mrow".equals(e.tagName()) || e.parent()!=null && e.parent().children().size()>1) {return e;}
+        while("mrow".equals(e.tagName()) && countAttributes(e)==0) {
+            Element only = null;
+            for(Node child : e.childNodes()) {
+                if(child instanceof Element) {
+                    if(only!=null) {return e;}
+                    only = (Element) child;
+                } else if(child instanceof TextNode && normalizedLength(((TextNode)child).getWholeText())>0) {
+                    return e;
+                }
+            }
+            if(only==null || "mo".equals(only.tagName())) {return e;}
+            e = only;
+        }
+        return e;
+    }
+
+    /** Hash the tag and the sorted attributes of the element, and copy them if needed **/
+    private static Element open(Element e, Hasher hasher, boolean build) {
+        hasher.putLong(OPEN);
+        hasher.putString(e.tagName());
+        Attributes attributes = e.attributes();
+        int n = countAttributes(e);
+        hasher.putLong(n);
+        Element copy = build ? new Element(Tag.valueOf(e.tagName()), "") : null;
+        if(n==0) {return copy;}
+        Attribute[] sorted = new Attribute[n];
+        int i = 0;
+        for(Attribute a : attributes) {
+            if(!isNamespace(a.getKey())) {sorted[i++] = a;}
+        }
+        if(n>1) {Arrays.sort(sorted, BY_KEY);}
+        for(Attribute a : sorted) {
+            hasher.putString(a.getKey());
+            hasher.putString(a.getValue());
+            if(build) {copy.attr(a.getKey(), a.getValue());}
+        }
+        return copy;
+    }
+
+    /** Number of attributes of the element, without the xmlns declarations **/
+    private static int countAttributes(Element e) {
+        Attributes attributes = e.attributes();
+        int n = attributes.size();
+        if(n>0) {
+            for(Attribute a : attributes) {
+                if(isNamespace(a.getKey())) {n--;}
+            }
+        }
+        return n;
+    }
+    private static boolean isNamespace(String key) {
+        return key.equals("xmlns") || key.startsWith("xmlns:");
+    }
+
+    /*
+     * The text of the labels is the text of Jsoup, whose whitespace is collapsed,
+     * trimmed as String.trim() does. The text is read from the original string.
+     */
+    /** Index of the first character kept by trim **/
+    private static int start(String text) {
+        int i = 0;
+        while(i<text.length() && text.charAt(i)<=' ') {i++;}
+        return i;
+    }
+    /** Index after the last character kept by trim **/
+    private static int end(String text) {
+        int i = text.length();
+        while(i>0 && text.charAt(i-1)<=' ') {i--;}
+        return i;
+    }
+    /** Length of the text once normalized **/
+    private static int normalizedLength(String text) {
+        int length = 0;
+        boolean whitespace = false;
+        for(int i=start(text), end=end(text); i<end; i++) {
+            boolean w = StringUtil.isWhitespace(text.charAt(i));
+            if(!w || !whitespace) {length++;}
+            whitespace = w;
+        }
+        return length;
+    }
+    /** Hash the characters of the text once normalized **/
+    private static void putNormalized(String text, Hasher hasher) {
+        boolean whitespace = false;
+        for(int i=start(text), end=end(text); i<end; i++) {
+            char c = text.charAt(i);
+            boolean w = StringUtil.isWhitespace(c);
+            if(!w) {hasher.putChar(c);}
+            else if(!whitespace) {hasher.putChar(' ');}
+            whitespace = w;
+        }
+    }
+    /** The normalized text **/
+    private static String normalize(String text, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        boolean whitespace = false;
+        for(int i=start(text), end=end(text); i<end; i++) {
+            char c = text.charAt(i);
+            boolean w = StringUtil.isWhitespace(c);
+            if(!w) {sb.append(c);}
+            else if(!whitespace) {sb.append(' ');}
+            whitespace = w;
+        }
+        return sb.toString();
+    }
+
+    /** The canonical form of a formula, with its key **/
+    public static final class Canonical {
+        private final Element element;
+        private final MathKey key;
+        private Canonical(Element element, MathKey key) {
+            this.element = element;
+            this.key = key;
+        }
+        /** The root element of the canonical form, or null if only the key was computed **/
+        public Element getElement() {return element;}
+        public MathKey getKey() {return key;}
+        /** The MathML of the canonical form **/
+        public String getMathML() {return element.outerHtml();}
+    }
+
+    /** Marks the end of an element in the stack of the nodes to visit **/
+    private static final class CloseNode extends TextNode {
+        private static final CloseNode INSTANCE = new CloseNode();
+        private CloseNode() {super("", "");}
+    }
+
+    /**
+     * MurmurHash3 x64 128-bit mixing, fed with 64-bit words. The characters are
+     * packed four by four, and each string is preceded by its length.
+     */
+    private static final class Hasher {
+        private static final long C1 = 0x87c37b91114253d5L, C2 = 0x4cf5ad432745937fL;
+        private long h1 = 0, h2 = 0;
+        /** The first word of the current block **/
+        private long k1;
+        private boolean half = false;
+        private long words = 0;
+        /** The characters not hashed yet **/
+        private long chars;
+        private int charCount = 0;
+
+        private void putLong(long k) {
+            words++;
+            if(!half) {
+                k1 = k;
+                half = true;
+                return;
+            }
+            half = false;
+            long k2 = k;
+            long a = k1*C1;
+            a = Long.rotateLeft(a, 31)*C2;
+            h1 ^= a;
+            h1 = Long.rotateLeft(h1, 27)+h2;
+            h1 = h1*5+0x52dce729;
+            k2 *= C2;
+            k2 = Long.rotateLeft(k2, 33)*C1;
+            h2 ^= k2;
+            h2 = Long.rotateLeft(h2, 31)+h1;
+            h2 = h2*5+0x38495ab5;
+        }
+
+        private void putChar(char c) {
+            chars |= (long)c<<(16*charCount);
+            if(++charCount==4) {
+                putLong(chars);
+                chars = 0;
+                charCount = 0;
+            }
+        }
+        private void endChars() {
+            if(charCount>0) {
+                putLong(chars);
+                chars = 0;
+                charCount = 0;
+            }
+        }
+
+        private void putString(String s) {
+            putLong(s.length());
+            for(int i=0; i<s.length(); i++) {putChar(s.charAt(i));}
+            endChars();
+        }
+
+        private MathKey finish() {
+            if(half) {
+                long a = k1*C1;
+                a = Long.rotateLeft(a, 31)*C2;
+                h1 ^= a;
+            }
+            long length = 8*words;
+            h1 ^= length;
+            h2 ^= length;
+            h1 += h2;
+            h2 += h1;
+            h1 = mix(h1);
+            h2 = mix(h2);
+            h1 += h2;
+            h2 += h1;
+            return new MathKey(h1, h2);
+        }
+
+        private static long mix(long k) {
+            k ^= k>>>33;
+            k *= 0xff51afd7ed558ccdL;
+            k ^= k>>>33;
+            k *= 0xc4ceb9fe1a85ec53L;
+            k ^= k>>>33;
+            return k;
+        }
+    }
+}
@@ -0,0 +1,385 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath;
+
+import com.fbillioud.jmath.render.MathRenderer;
+import com.fbillioud.jmath.render.RenderedMath;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jsoup.nodes.Element;
+
+/**
+ * Finds the &lt;math&gt; elements of a large HTML stream and processes them.
+ * The HTML is read sequentially and never held in memory: only the MathML
+ * islands are kept, and only as long as they are waiting to be processed.
+ * The islands are processed by a pool of threads while the stream is still
+ * being read, and the results are delivered in the order of the document.
+ * @author François Billioud
+ */
+public class MathExtractor {
+
+    /** Number of threads processing the islands **/
+    private final int threads;
+    /** Maximum number of islands read but not delivered yet **/
+    private final int capacity;
+
+    /**
+     * Create an extractor.
+     * @param threads number of threads processing the islands
+     * @param capacity maximum number of islands read from the stream but not delivered yet.
+     * When this number is reached, the reading waits for the processing.
+     */
+    public MathExtractor(int threads, int capacity) {
+        if(threads<1) {throw new IllegalArgumentException("at least one thread is needed: "+threads);}
+        if(capacity<1) {throw new IllegalArgumentException("the capacity must be positive: "+capacity);}
+        this.threads = threads;
+        this.capacity = capacity;
+    }
+
+    /** Create an extractor using all the processors **/
+    public MathExtractor() {this(Runtime.getRuntime().availableProcessors(), 4*Runtime.getRuntime().availableProcessors());}
+
+    /**
+     * The processing applied to each MathML island.
+     * It is called from the processing threads.
+     * @param <T> type of the result
+     */
+    public static interface Stage<T> {
+        T process(MathIsland island) throws Exception;
+    }
+
+    /**
+     * Receive the processed islands, in the order of the document.
+     * It is called from a single thread, distinct from the one reading the stream.
+     * @param <T> type of the result
+     */
+    public static interface Listener<T> {
+        void onResult(Result<T> result);
+    }
+
+    /** A &lt;math&gt; element found in the HTML stream **/
+    public static class MathIsland {
+        private final int index;
+        private final long start;
+        private final long end;
+        private final String source;
+
+        MathIsland(int index, long start, long end, String source) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.source = source;
+        }
+        /** Position of this island in the document: 0 for the first &lt;math&gt; element **/
+        public int getIndex() {return index;}
+        /** Offset, in characters, of the '&lt;' opening the &lt;math&gt; element **/
+        public long getStart() {return start;}
+        /** Offset, in characters, just after the '&gt;' closing the &lt;math&gt; element **/
+        public long getEnd() {return end;}
+        /** The HTML source of the &lt;math&gt; element **/
+        public String getSource() {return source;}
+        /** Parse the source into a Jsoup element **/
+        public Element getElement() {return JsoupTools.parse(source).body().child(0);}
+    }
+
+    /**
+     * The result of the processing of an island.
+     * @param <T> type of the result
+     */
+    public static class Result<T> {
+        private final MathIsland island;
+        private final T value;
+        private final Exception error;
+
+        Result(MathIsland island, T value, Exception error) {
+            this.island = island;
+            this.value = value;
+            this.error = error;
+        }
+        public MathIsland getIsland() {return island;}
+        /** The value returned by the stage, or null if it failed **/
+        public T getValue() {return value;}
+        /** The exception thrown by the stage, or null if it succeeded **/
+        public Exception getError() {return error;}
+        public boolean isSuccess() {return error==null;}
+    }
+
+    /**
+     * A stage that renders each island with the renderer.
+     * @param renderer the renderer to use
+     * @return the rendering stage
+     */
+    public static Stage<RenderedMath> renderStage(final MathRenderer renderer) {
+        return new Stage<RenderedMath>() {
+            @Override
+            public RenderedMath process(MathIsland island) {
+                return renderer.render(island.getElement());
+            }
+        };
+    }
+
+    /**
+     * Read the stream, process each MathML island with the stage and send the
+     * results to the listener in the order of the document.
+     * The method returns once every island has been delivered.
+     * A stage throwing an exception doesn't stop the extraction: the error is reported in the result.
+     * An Error thrown by a stage, or anything thrown by the listener, stops it and is thrown by this method.
+     * @param <T> the type of the results
+     * @param html the HTML stream. It is not closed by this method.
+     * @param stage the processing to apply to each island
+     * @param listener the receiver of the results
+     * @return the number of islands found
+     * @throws IOException if the stream couldn't be read
+     * @throws InterruptedException if the thread was interrupted while waiting for the processing.
+     * The islands not delivered yet are dropped.
+     */
+    public <T> int extract(Reader html, final Stage<T> stage, final Listener<T> listener) throws IOException, InterruptedException {
+        final BlockingQueue<Future<Result<T>>> pending = new ArrayBlockingQueue<>(capacity);
+        final FutureTask<Result<T>> end = new FutureTask<>(new Callable<Result<T>>() {
+            @Override
+            public Result<T> call() {return null;}
+        });
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Thread delivery = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    //After a failure, the queue is still drained, so that the reader never blocks
+                    for(Future<Result<T>> future = pending.take(); future!=end; future = pending.take()) {
+                        try {
+                            Result<T> result = future.get();
+                            if(failure.get()==null) {listener.onResult(result);}
+                        } catch(ExecutionException ex) {
+                            //The task catches the exceptions: only an Error of the stage gets here
+                            failure.compareAndSet(null, ex.getCause());
+                        } catch(RuntimeException | Error ex) {
+                            failure.compareAndSet(null, ex);
+                        }
+                    }
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, "MathExtractor-delivery");
+        delivery.start();
+
+        int count = 0;
+        try {
+            IslandScanner scanner = new IslandScanner(html);
+            for(MathIsland island = scanner.next(count); island!=null && failure.get()==null; island = scanner.next(count)) {
+                final MathIsland task = island;
+                pending.put(executor.submit(new Callable<Result<T>>() {
+                    @Override
+                    public Result<T> call() {
+                        try {
+                            return new Result<>(task, stage.process(task), null);
+                        } catch(Exception ex) {
+                            return new Result<>(task, null, ex);
+                        }
+                    }
+                }));
+                count++;
+            }
+        } catch(InterruptedException ex) {
+            //The end marker is then not waited for: the delivery is stopped
+            Thread.currentThread().interrupt();
+            throw ex;
+        } finally {
+            try {
+                finish(pending, end, delivery);
+            } finally {
+                //Every task was delivered, unless this thread was interrupted
+                executor.shutdownNow();
+            }
+        }
+        Throwable failed = failure.get();
+        if(failed instanceof RuntimeException) {throw (RuntimeException) failed;}
+        if(failed instanceof Error) {throw (Error) failed;}
+        if(failed!=null) {throw new IllegalStateException(failed);}
+        return count;
+    }
+
+    /**
+     * Send the end marker to the delivery thread and wait for it. If this thread is
+     * interrupted, the delivery is interrupted too, and this waits for it to stop.
+     * @param pending the queue read by the delivery thread
+     * @param end the end marker
+     * @param delivery the delivery thread
+     * @throws InterruptedException if this thread was interrupted
+     */
+    private static <T> void finish(BlockingQueue<Future<Result<T>>> pending, Future<Result<T>> end, Thread delivery) throws InterruptedException {
+        try {
+            pending.put(end);
+            delivery.join();
+        } catch(InterruptedException ex) {
+            delivery.interrupt();
+            while(delivery.isAlive()) {
+                try {
+                    delivery.join();
+                } catch(InterruptedException again) {
+                    //The delivery stops quickly once interrupted
+                }
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Cut the MathML islands out of the stream, without processing them.
+     * @param html the HTML stream. It is not closed by this method.
+     * @return the islands, in the order of the document
+     * @throws IOException if the stream couldn't be read
+     */
+    public static List<MathIsland> scan(Reader html) throws IOException {
+        List<MathIsland> islands = new ArrayList<>();
+        IslandScanner scanner = new IslandScanner(html);
+        for(MathIsland island = scanner.next(0); island!=null; island = scanner.next(islands.size())) {islands.add(island);}
+        return islands;
+    }
+
+    /**
+     * Reads the HTML stream and cuts the &lt;math&gt; elements out of it.
+     * Comments are skipped, and nested &lt;math&gt; elements stay in their outer island.
+     */
+    private static class IslandScanner {
+        private final Reader reader;
+        private final char[] buffer = new char[1<<16];
+        /** Position of the next char to read in the buffer **/
+        private int pos = 0;
+        /** Number of valid chars in the buffer **/
+        private int limit = 0;
+        /** Offset in the stream of the first char of the buffer **/
+        private long bufferOffset = 0;
+        private boolean eof = false;
+
+        IslandScanner(Reader reader) {this.reader = reader;}
+
+        /** Offset in the stream of the next char **/
+        private long offset() {return bufferOffset+pos;}
+
+        /** Make sure that n chars can be read without refilling, unless the stream ends **/
+        private boolean ensure(int n) throws IOException {
+            while(limit-pos<n && !eof) {
+                if(pos>0) {
+                    System.arraycopy(buffer, pos, buffer, 0, limit-pos);
+                    bufferOffset += pos;
+                    limit -= pos;
+                    pos = 0;
+                }
+                int read = reader.read(buffer, limit, buffer.length-limit);
+                if(read<0) {eof = true;}
+                else {limit += read;}
+            }
+            return limit-pos>=n;
+        }
+
+        /** Check, without consuming it, if the text at the current position starts with the lower case prefix **/
+        private boolean lookingAt(String prefix) throws IOException {
+            if(!ensure(prefix.length())) {return false;}
+            for(int i=0; i<prefix.length(); i++) {
+                if(Character.toLowerCase(buffer[pos+i])!=prefix.charAt(i)) {return false;}
+            }
+            return true;
+        }
+
+        /** Check if the tag name at the current position is exactly the prefix ("&lt;math", "&lt;/math") **/
+        private boolean lookingAtTag(String prefix) throws IOException {
+            if(!lookingAt(prefix) || !ensure(prefix.length()+1)) {return false;}
+            char next = buffer[pos+prefix.length()];
+            return Character.isWhitespace(next) || next=='>' || next=='/';
+        }
+
+        /**
+         * Consume the text until the end of the delimiter.
+         * @param delimiter the delimiter to look for
+         * @param island the builder receiving the chars consumed, or null
+         */
+        private void skipPast(String delimiter, StringBuilder island) throws IOException {
+            while(ensure(1)) {
+                if(lookingAt(delimiter)) {
+                    if(island!=null) {island.append(buffer, pos, delimiter.length());}
+                    pos += delimiter.length();
+                    return;
+                }
+                if(island!=null) {island.append(buffer[pos]);}
+                pos++;
+            }
+        }
+
+        /**
+         * Consume a tag up to its closing '&gt;', quotes being respected.
+         * @return true if the tag is self closing
+         */
+        private boolean readTag(StringBuilder island) throws IOException {
+            char quote = 0, previous = 0;
+            while(ensure(1)) {
+                char c = buffer[pos++];
+                island.append(c);
+                if(quote!=0) {
+                    if(c==quote) {quote = 0;}
+                } else if(c=='"' || c=='\'') {
+                    quote = c;
+                } else if(c=='>') {
+                    return previous=='/';
+                }
+                previous = c;
+            }
+            return false;
+        }
+
+        /**
+         * Find the next island in the stream.
+         * @param index the index to give to the island
+         * @return the island, or null at the end of the stream
+         */
+        MathIsland next(int index) throws IOException {
+            while(ensure(1)) {
+                if(buffer[pos]!='<') {pos++; continue;}
+                if(lookingAt("<!--")) {skipPast("-->", null); continue;}
+                if(!lookingAtTag("<math")) {pos++; continue;}
+
+                long start = offset();
+                StringBuilder island = new StringBuilder();
+                int depth = 0;
+                do {
+                    if(lookingAt("<!--")) {skipPast("-->", island);}
+                    else if(lookingAtTag("<math")) {
+                        if(!readTag(island)) {depth++;}
+                    } else if(lookingAtTag("</math")) {
+                        readTag(island);
+                        depth--;
+                    } else {
+                        island.append(buffer[pos++]);
+                    }
+                } while(depth>0 && ensure(1));
+                return new MathIsland(index, start, offset(), island.toString());
+            }
+            return null;
+        }
+    }
+}
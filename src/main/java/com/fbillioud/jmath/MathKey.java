@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath;
+
+/**
+ * The 128-bit hash of the canonical form of a formula, computed by {@link MathCanonicalizer}.
+ * Two formulas displayed the same way get the same key, whatever their whitespace,
+ * attribute order, entities or redundant rows.
+ * @author François Billioud
+ */
+public final class MathKey implements Comparable<MathKey> {
+    private final long high;
+    private final long low;
+
+    public MathKey(long high, long low) {
+        this.high = high;
+        this.low = low;
+    }
+
+    public long getHigh() {return high;}
+    public long getLow() {return low;}
+
+    /**
+     * Read a key written by {@link #toString()}.
+     * @param hex the 32 hexadecimal digits of the key
+     * @return the key
+     * @throws NumberFormatException if the string is not a key
+     */
+    public static MathKey parse(String hex) {
+        if(hex.length()!=32) {throw new NumberFormatException("A key has 32 hexadecimal digits: "+hex);}
+        return new MathKey(parseHex(hex.substring(0, 16)), parseHex(hex.substring(16)));
+    }
+    private static long parseHex(String hex) {
+        return Long.parseLong(hex.substring(0, 8), 16)<<32 | Long.parseLong(hex.substring(8), 16);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof MathKey)) {return false;}
+        MathKey k = (MathKey) o;
+        return high==k.high && low==k.low;
+    }
+
+    @Override
+    public int hashCode() {return (int)(low ^ low>>>32);}
+
+    @Override
+    public int compareTo(MathKey k) {
+        //Unsigned comparison
+        int c = Long.compare(high+Long.MIN_VALUE, k.high+Long.MIN_VALUE);
+        return c!=0 ? c : Long.compare(low+Long.MIN_VALUE, k.low+Long.MIN_VALUE);
+    }
+
+    /** The 32 hexadecimal digits of the key, usable as a file name **/
+    @Override
+    public String toString() {
+        return hex(high)+hex(low);
+    }
+    private static String hex(long value) {
+        String s = Long.toHexString(value);
+        return "0000000000000000".substring(s.length())+s;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.components;
+
+import com.fbillioud.jmath.render.MathRenderer;
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.JComponent;
+
+/**
+ * A bounded set of laid out JMathDisplayers, used to paint formulas without
+ * keeping a Swing component for each of them.
+ * The displayers are not added to any container: they are only used as stamps,
+ * the way a JTable uses its renderers. The least recently used ones are
+ * discarded when the capacity is reached.
+ * @author François Billioud
+ */
+public class DisplayerPool {
+    /** Maximum number of displayers kept **/
+    private final int capacity;
+    /** The displayers, in access order **/
+    private final Map<Key, JMathDisplayer> displayers;
+    /** Maximum number of metrics kept **/
+    private final int metricsCapacity;
+    /** The metrics of the formulas measured, whatever their color, kept after their displayer was discarded **/
+    private final Map<Key, MathMetrics> metrics;
+
+    /**
+     * Create a pool.
+     * @param capacity the maximum number of displayers kept. It should be at least
+     * the number of formulas visible at the same time.
+     */
+    public DisplayerPool(int capacity) {this(capacity, 100*capacity);}
+
+    /**
+     * Create a pool.
+     * @param capacity the maximum number of displayers kept. It should be at least
+     * the number of formulas visible at the same time.
+     * @param metricsCapacity the maximum number of formula metrics kept. Metrics
+     * are small, and keeping them avoids building a displayer again just to
+     * know the size of a formula. It must be at least the capacity.
+     */
+    public DisplayerPool(int capacity, int metricsCapacity) {
+        if(metricsCapacity<capacity) {throw new IllegalArgumentException("the metrics capacity "+metricsCapacity+" is smaller than the capacity "+capacity);}
+        this.capacity = capacity;
+        this.metricsCapacity = metricsCapacity;
+        this.displayers = new LinkedHashMap<Key, JMathDisplayer>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, JMathDisplayer> eldest) {
+                return size()>DisplayerPool.this.capacity;
+            }
+        };
+        this.metrics = new LinkedHashMap<Key, MathMetrics>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, MathMetrics> eldest) {
+                return size()>DisplayerPool.this.metricsCapacity;
+            }
+        };
+    }
+
+    public int getCapacity() {return capacity;}
+
+    /**
+     * Get a displayer for this formula, laid out at its preferred size.
+     * The displayer must not be modified nor added to a container.
+     * @param mathML the MathML string
+     * @param font the font of the formula
+     * @param foreground the default color of the formula
+     * @return the displayer
+     */
+    public synchronized JMathDisplayer get(String mathML, Font font, Color foreground) {
+        return get(new Key(mathML, font, foreground));
+    }
+    private JMathDisplayer get(Key key) {
+        JMathDisplayer displayer = displayers.get(key);
+        if(displayer==null) {
+            displayer = createStamp(key.mathML, key.font, key.foreground);
+            displayers.put(key, displayer);
+            metrics.put(new Key(key.mathML, key.font, null), MathMetrics.of(displayer));
+        }
+        return displayer;
+    }
+
+    /**
+     * Measure the formula.
+     * @param mathML the MathML string
+     * @param font the font of the formula
+     * @param foreground the default color of the formula
+     * @return the size and baseline of the formula
+     */
+    public synchronized MathMetrics measure(String mathML, Font font, Color foreground) {
+        //The color doesn't change the size of the formula
+        Key key = new Key(mathML, font, null);
+        MathMetrics m = metrics.get(key);
+        if(m==null) {
+            //The displayer can still be kept while its metrics were discarded
+            m = MathMetrics.of(get(new Key(mathML, font, foreground)));
+            metrics.put(key, m);
+        }
+        return m;
+    }
+
+    /**
+     * Paint the formula with its top left corner at (x,y).
+     * @param g the graphics to paint on
+     * @param mathML the MathML string
+     * @param font the font of the formula
+     * @param foreground the default color of the formula
+     * @param x the left of the formula
+     * @param y the top of the formula
+     */
+    public void paint(Graphics g, String mathML, Font font, Color foreground, int x, int y) {
+        JMathDisplayer displayer = get(mathML, font, foreground);
+        Graphics cg = g.create(x, y, displayer.getWidth(), displayer.getHeight());
+        try {
+            displayer.paint(cg);
+        } finally {
+            cg.dispose();
+        }
+    }
+
+    /** Discard all the displayers and metrics **/
+    public synchronized void clear() {
+        displayers.clear();
+        metrics.clear();
+    }
+
+    /**
+     * Create a displayer that will be painted without being added to a container.
+     * @param mathML the MathML string
+     * @param font the font of the formula
+     * @param foreground the default color of the formula, or null
+     * @return the displayer, laid out at its preferred size. It is empty if the formula is too deep to be displayed.
+     */
+    static JMathDisplayer createStamp(String mathML, Font font, Color foreground) {
+        JMathDisplayer displayer;
+        try {
+            displayer = new JMathDisplayer(mathML);
+        } catch(IllegalArgumentException ex) {
+            //Like the invalid MathML, the formula is reported rather than breaking the painting of its user
+            Logger.getLogger(DisplayerPool.class.getName()).log(Level.SEVERE, null, ex);
+            displayer = new JMathDisplayer();
+        }
+        displayer.setFont(font);
+        if(foreground!=null) {displayer.setForeground(foreground);}
+        MathRenderer.layout(displayer);
+        disableDoubleBuffering(displayer);
+        return displayer;
+    }
+
+    /** The stamps are painted into the graphics of their user, which is already buffered **/
+    static void disableDoubleBuffering(Container c) {
+        if(c instanceof JComponent) {((JComponent)c).setDoubleBuffered(false);}
+        for(Component child : c.getComponents()) {
+            if(child instanceof Container) {disableDoubleBuffering((Container)child);}
+        }
+    }
+
+    /** Identify a formula with its rendering parameters **/
+    private static final class Key {
+        private final String mathML;
+        private final Font font;
+        private final Color foreground;
+        private final int hash;
+        private Key(String mathML, Font font, Color foreground) {
+            this.mathML = mathML;
+            this.font = font;
+            this.foreground = foreground;
+            this.hash = (mathML.hashCode()*31+font.hashCode())*31+(foreground==null ? 0 : foreground.hashCode());
+        }
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {return false;}
+            Key k = (Key) o;
+            return hash==k.hash && mathML.equals(k.mathML) && font.equals(k.font)
+                    && (foreground==null ? k.foreground==null : foreground.equals(k.foreground));
+        }
+        @Override
+        public int hashCode() {return hash;}
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.components;
+
+import java.awt.Color;
+import java.awt.Component;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Insets;
+import javax.swing.JComponent;
+import javax.swing.JList;
+import javax.swing.JTable;
+import javax.swing.ListCellRenderer;
+import javax.swing.UIManager;
+import javax.swing.border.Border;
+import javax.swing.border.EmptyBorder;
+import javax.swing.table.TableCellRenderer;
+import org.jsoup.nodes.Element;
+
+/**
+ * Renders formulas in the cells of a JList or a JTable.
+ * The cells can contain MathML strings, Jsoup elements, or any other object that
+ * will be displayed as text.
+ * A single lightweight component is used for all the cells: the formulas are
+ * painted with the displayers of a {@link DisplayerPool}, whose size should be
+ * at least the number of visible cells. The sizes of the formulas are cached,
+ * so the list can compute its layout without building the formulas again.
+ * Note that a JList measures all its cells once, unless a fixed cell height or
+ * a prototype cell value is set.
+ * @author François Billioud
+ */
+public class JMathCellRenderer extends JComponent implements ListCellRenderer<Object>, TableCellRenderer {
+    /** Default number of displayers kept to paint the visible cells **/
+    public static final int DEFAULT_POOL_SIZE = 64;
+    private static final Border NO_FOCUS_BORDER = new EmptyBorder(1, 1, 1, 1);
+
+    /** The displayers used to paint the cells **/
+    private final DisplayerPool pool;
+    /** The MathML of the cell being rendered **/
+    private String mathML = "<math></math>";
+
+    public JMathCellRenderer() {this(new DisplayerPool(DEFAULT_POOL_SIZE));}
+    /**
+     * Create a renderer painting with the displayers of this pool.
+     * @param pool the pool providing the displayers
+     */
+    public JMathCellRenderer(DisplayerPool pool) {
+        this.pool = pool;
+        setOpaque(true);
+        setBorder(NO_FOCUS_BORDER);
+    }
+
+    public DisplayerPool getPool() {return pool;}
+
+    @Override
+    public Component getListCellRendererComponent(JList<? extends Object> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+        setComponentOrientation(list.getComponentOrientation());
+        setFont(list.getFont());
+        setBackground(isSelected ? list.getSelectionBackground() : list.getBackground());
+        setForeground(isSelected ? list.getSelectionForeground() : list.getForeground());
+        setBorder(cellHasFocus ? getFocusBorder("List.focusCellHighlightBorder") : NO_FOCUS_BORDER);
+        setValue(value);
+        return this;
+    }
+
+    @Override
+    public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+        setComponentOrientation(table.getComponentOrientation());
+        setFont(table.getFont());
+        setBackground(isSelected ? table.getSelectionBackground() : table.getBackground());
+        setForeground(isSelected ? table.getSelectionForeground() : table.getForeground());
+        setBorder(hasFocus ? getFocusBorder("Table.focusCellHighlightBorder") : NO_FOCUS_BORDER);
+        setValue(value);
+        return this;
+    }
+
+    private static Border getFocusBorder(String key) {
+        Border border = UIManager.getBorder(key);
+        return border==null ? NO_FOCUS_BORDER : border;
+    }
+
+    /**
+     * Set the formula to render.
+     * @param value a MathML string, a Jsoup element, or any object to display as text
+     */
+    protected void setValue(Object value) {
+        if(value instanceof Element) {mathML = ((Element)value).outerHtml();}
+        else {
+            String s = value==null ? "" : value.toString();
+            mathML = s.trim().startsWith("<") ? s : "<math><mtext>"+escape(s)+"</mtext></math>";
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    /** The size of the formula, read from the cache of the pool **/
+    private MathMetrics getMetrics() {
+        return pool.measure(mathML, getFont(), getForeground());
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if(isPreferredSizeSet()) {return super.getPreferredSize();}
+        MathMetrics m = getMetrics();
+        Insets insets = getInsets();
+        return new Dimension(m.getWidth()+insets.left+insets.right, m.getHeight()+insets.top+insets.bottom);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if(isOpaque()) {
+            g.setColor(getBackground());
+            g.fillRect(0, 0, getWidth(), getHeight());
+        }
+        Insets insets = getInsets();
+        MathMetrics m = getMetrics();
+        int x = getComponentOrientation().isLeftToRight() ? insets.left : getWidth()-insets.right-m.getWidth();
+        int y = insets.top+(getHeight()-insets.top-insets.bottom-m.getHeight())/2;
+        pool.paint(g, mathML, getFont(), getForeground(), x, y);
+    }
+
+    /*
+     * As in DefaultListCellRenderer, the following methods are overridden
+     * for performance reasons: the renderer is never really part of the hierarchy.
+     */
+    @Override
+    public void invalidate() {}
+    @Override
+    public void validate() {}
+    @Override
+    public void revalidate() {}
+    @Override
+    public void repaint(long tm, int x, int y, int width, int height) {}
+    @Override
+    protected void firePropertyChange(String propertyName, Object oldValue, Object newValue) {}
+    @Override
+    public void firePropertyChange(String propertyName, boolean oldValue, boolean newValue) {}
+
+    @Override
+    public void setForeground(Color fg) {
+        if(fg!=null) {super.setForeground(fg);}
+    }
+}
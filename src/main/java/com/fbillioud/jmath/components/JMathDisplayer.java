@@ -18,19 +18,34 @@ package com.fbillioud.jmath.components;
 import com.fbillioud.jmath.JsoupTools;
 import com.fbillioud.jmath.MathComponent;
 import com.fbillioud.jmath.components.Module.*;
+import com.fbillioud.jmath.render.MathRenderer;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Component;
+import java.awt.Container;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.LayoutManager;
+import java.awt.Rectangle;
 import java.awt.RenderingHints;
-import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.swing.JComponent;
 import javax.swing.JPanel;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
 import org.jsoup.nodes.Element;
 import org.jsoup.parser.Tag;
 
@@ -46,6 +61,57 @@ public class JMathDisplayer extends JPanel implements MathComponent {
     private Module module;
     /** The foreground color of this element if not inherited **/
     protected Color foreground;
+    /** The last string given to {@link #setMathML(String)}, if any **/
+    private String mathMLSource;
+    /** The size and baseline of this component, kept until it is invalidated **/
+    private MathMetrics metrics;
+    /** True while the bounds are changed, which doesn't change the measure **/
+    private boolean resizing = false;
+    /**
+     * The font of this component. It is not stored by Container, whose setFont
+     * invalidates the whole subtree recursively.
+     **/
+    private Font font;
+    /** True if the children are displayed as a row, whatever the tag of the element **/
+    private boolean row;
+    /** The component this displayer takes its style from, until it is built **/
+    private JComponent owner;
+    /** The width the lines of this formula must fit in, or -1 to display it on one line **/
+    private int wrapWidth = -1;
+    /** The depth of this displayer in the formula being built **/
+    private int depth;
+    /** The children waiting to be added to this component, while its formula is built **/
+    private List<Object[]> waiting;
+    /** The identical subtrees of the formula **/
+    private SharedSubtrees subtrees;
+    /** True if this displayer has no children, and paints the canonical displayer of its subtree **/
+    private boolean shared = false;
+    /** The canonical displayer painted, and the style it was chosen for **/
+    private JMathDisplayer canonical;
+    private Font canonicalFont;
+    private Color canonicalForeground;
+    /** The viewport whose moves make the root of the formula prepare its visible area **/
+    private JViewport viewport;
+    private ChangeListener viewportListener;
+    /** True while the preparation of the visible area waits for the end of the current layout **/
+    private boolean preparing = false;
+    
+    /**
+     * Deepest nesting of MathML elements in a formula. Swing adds and displays the components
+     * recursively, and a formula can have two displayers for each level of elements: deeper
+     * formulas would overflow the stack of the threads displaying them.
+     **/
+    public static final int MAX_DEPTH = 500;
+    /** The formula being built by the current thread, if any **/
+    private static final ThreadLocal<Build> BUILD = new ThreadLocal<>();
+    /** Number of displayers installed by a thread between two checks for idle threads to share its work with **/
+    private static final int SPLIT_INTERVAL = 64;
+    /** Number of displayers installed sequentially before the rest of a formula is built in parallel **/
+    private static volatile int parallelThreshold = 1024;
+    /** The threads building the large formulas, created when first needed **/
+    private static ForkJoinPool pool;
+    /** True if the identical subtrees of the formulas are displayed from a single displayer **/
+    private static volatile boolean subtreeSharing = true;
 
     /** Create an empty JMathDisplayer **/
     public JMathDisplayer() {this("<math xmlns=\"http://www.w3.org/1998/Math/MathML\"></math>");}
@@ -60,22 +126,225 @@ public class JMathDisplayer extends JPanel implements MathComponent {
      * @param mathElement the Jsoup element to display
      * @param parent the parent this JMathDisplayer belongs to
      */
-    JMathDisplayer(Element mathElement, JComponent parent) {
+    JMathDisplayer(Element mathElement, JComponent parent) {this(mathElement, parent, false);}
+    
+    /** 
+     * Create a Panel that will display the content of this Jsoup element
+     * into this parent. Inside a formula being built, the module of the
+     * displayer is only installed once the module of its parent is complete.
+     * @param mathElement the Jsoup element to display
+     * @param parent the parent this JMathDisplayer belongs to
+     * @param row true to display the children of the element as a row,
+     * like a &lt;mrow&gt; containing them would
+     */
+    JMathDisplayer(Element mathElement, JComponent parent, boolean row) {
         setOpaque(false);
-
+        this.mathElement = mathElement;
+        this.owner = parent;
+        this.row = row;
+        Build build = BUILD.get();
+        if(build!=null) {
+            depth = parent instanceof JMathDisplayer ? ((JMathDisplayer)parent).depth+1 : 0;
+            build.pending.push(this);
+        } else {
+            build(this);
+        }
+    }
+    
+    /**
+     * Install the modules of this displayer and of all its descendants. The descendants
+     * are built from a stack rather than recursively, as formulas can be very deep,
+     * and each of them takes the style of its parent once, before having children.
+     * <p>
+     * The components are only added to their parent at the end. When a child is added,
+     * Swing walks up the ancestors of the parent and down the descendants of the child.
+     * The children of the displayers at depth d are added at the round given by the
+     * number of trailing zeros of d+1, which joins the formula by bands of levels
+     * twice as large at each round: this costs O(n log(depth)) rather than O(n*depth).
+     * As Swing walks the containers recursively, the depth of the formula is limited to {@link #MAX_DEPTH}.
+     * @param root the displayer to build
+     * @throws IllegalArgumentException if the formula is nested too deeply
+     */
+    private static void build(JMathDisplayer root) {build(Collections.singletonList(root));}
+    
+    /**
+     * Build these displayers together. The modules of large formulas are installed
+     * in parallel, but the components are added by the current thread.
+     * @param roots the displayers to build, which are not part of a formula being built
+     * @throws IllegalArgumentException if a formula is nested too deeply
+     * @see #setParallelThreshold(int)
+     */
+    private static void build(List<JMathDisplayer> roots) {
+        //The formulas are checked before anything is built. The parts of a formula, like the cells of lazy tables, were checked with it.
+        for(JMathDisplayer root : roots) {
+            if(!(root.owner instanceof JMathDisplayer)) {checkDepth(root.mathElement);}
+        }
+        Build build = new Build();
+        for(JMathDisplayer root : roots) {
+            root.depth = 0;
+            if(root.owner==null && root.subtrees==null && subtreeSharing) {root.subtrees = new SharedSubtrees(root.mathElement);}
+            build.pending.push(root);
+        }
+        build.install();
+        List<List<JMathDisplayer>> rounds = new ArrayList<>();
+        for(JMathDisplayer d : build.built) {
+            int round = Integer.numberOfTrailingZeros(d.depth+1);
+            while(rounds.size()<=round) {rounds.add(new ArrayList<JMathDisplayer>());}
+            rounds.get(round).add(d);
+        }
+        for(List<JMathDisplayer> round : rounds) {
+            for(JMathDisplayer d : round) {d.addWaitingChildren();}
+        }
+    }
+    
+    /**
+     * Check that the elements of the formula are not nested deeper than {@link #MAX_DEPTH}.
+     * @param root the root element of the formula
+     * @throws IllegalArgumentException if the formula is nested too deeply
+     */
+    private static void checkDepth(Element root) {
+        Deque<Element> elements = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        elements.push(root);
+        depths.push(1);
+        while(!elements.isEmpty()) {
+            Element e = elements.pop();
+            int depth = depths.pop();
+            if(depth>MAX_DEPTH) {throw new IllegalArgumentException("the formula is nested deeper than "+MAX_DEPTH+" elements");}
+            for(Element child : e.children()) {
+                elements.push(child);
+                depths.push(depth+1);
+            }
+        }
+    }
+    
+    /**
+     * Create the displayers of these elements, as roots of the same build.
+     * The elements are independent, so they can be built in parallel.
+     * @param elements the elements to display
+     * @param owner the component the displayers take their style from
+     * @return the displayers, in the order of the elements
+     */
+    static List<JMathDisplayer> build(List<Element> elements, JComponent owner) {
+        List<JMathDisplayer> displayers = new ArrayList<>(elements.size());
+        Build build = new Build();
+        //The displayers are only created here: they will be installed by the build
+        BUILD.set(build);
+        try {
+            for(Element e : elements) {displayers.add(new JMathDisplayer(e, owner));}
+        } finally {
+            BUILD.remove();
+        }
+        build(displayers);
+        return displayers;
+    }
+    
+    /**
+     * Create the displayer painted by the shared displayers of a subtree.
+     * @param e the root element of the subtree
+     * @param subtrees the identical subtrees of the formula, which can also be shared inside this one
+     * @param font the font of the subtree
+     * @param foreground the color inherited by the subtree
+     * @return the displayer, laid out at its preferred size
+     */
+    static JMathDisplayer createCanonical(Element e, SharedSubtrees subtrees, Font font, Color foreground) {
+        JMathDisplayer displayer;
+        BUILD.set(new Build());
+        try {
+            displayer = new JMathDisplayer(e, null);
+        } finally {
+            BUILD.remove();
+        }
+        displayer.subtrees = subtrees;
+        displayer.setFont(font);
+        displayer.setForeground(foreground);
+        build(Collections.singletonList(displayer));
+        MathRenderer.layout(displayer);
+        DisplayerPool.disableDoubleBuffering(displayer);
+        return displayer;
+    }
+    
+    /** Check if the identical subtrees of the formulas are displayed from a single displayer **/
+    public static boolean isSubtreeSharing() {return subtreeSharing;}
+    /**
+     * Set if the identical subtrees of the formulas built afterwards are displayed from a
+     * single displayer. The copies of a subtree are then childless components, which are
+     * measured and painted from a canonical displayer built once for each style. The measure
+     * and layout counts of {@link MathLayout} then cover each shared subtree once, not each copy.
+     * @param sharing true to share the identical subtrees
+     */
+    public static void setSubtreeSharing(boolean sharing) {subtreeSharing = sharing;}
+    
+    /** Check if this displayer paints a subtree shared with identical parts of the formula, rather than its own children **/
+    public boolean isShared() {return shared;}
+    
+    /** Number of displayers installed sequentially before the rest of a formula is built in parallel **/
+    public static int getParallelThreshold() {return parallelThreshold;}
+    /**
+     * Set the number of displayers installed sequentially before the rest of a formula
+     * is built in parallel. Only the creation of the modules and components is parallel:
+     * Swing adds the components and lays them out under a single lock.
+     * @param nodes the number of displayers, or Integer.MAX_VALUE to always build sequentially
+     */
+    public static void setParallelThreshold(int nodes) {parallelThreshold = Math.max(nodes, SPLIT_INTERVAL);}
+    
+    /** The threads building the large formulas **/
+    private static synchronized ForkJoinPool getBuildPool() {
+        if(pool==null) {pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());}
+        return pool;
+    }
+    
+    /** Take the style of the owner, then install the best module to represent the element **/
+    private void install() {
+        Element parentElement = null;
+        if(owner!=null) {
+            setFont(owner.getFont());
+            if(foreground==null) setForeground(owner.getForeground());
+            if(owner instanceof JMathDisplayer) {
+                subtrees = ((JMathDisplayer)owner).subtrees;
+                parentElement = ((JMathDisplayer)owner).mathElement;
+            }
+            owner = null;
+        }
+        waiting = new ArrayList<>();
+        if(subtrees!=null && parentElement!=null && !row && subtrees.isShared(mathElement, parentElement)) {
+            shared = true;
+            return;
+        }
         try {
-            //Install the best module to represent the element
             setMathElement(mathElement);
         } catch (MathMLParsingException ex) {
             Logger.getLogger(JMathDisplayer.class.getName()).log(Level.SEVERE, null, ex);
         }
-        
-        if(parent!=null) {
-            this.setFont(parent.getFont());
-            if(foreground==null) setForeground(parent.getForeground());
+    }
+    
+    /** Add the children created by the module. The labels take the style of this component **/
+    private void addWaitingChildren() {
+        List<Object[]> children = waiting;
+        waiting = null;
+        for(Object[] child : children) {
+            Component c = (Component) child[0];
+            add(c, child[1]);
+            if(!(c instanceof JMathDisplayer)) {
+                c.setFont(getFont());
+                c.setForeground(getForeground());
+            }
         }
     }
     
+    /**
+     * Add a child to a displayer. While the formula of the displayer is built,
+     * the child is only added at the end of the build.
+     * @param parent the displayer
+     * @param child the child to add
+     * @param constraints the constraints given to the layout
+     */
+    static void add(JComponent parent, Component child, Object constraints) {
+        List<Object[]> waiting = parent instanceof JMathDisplayer ? ((JMathDisplayer)parent).waiting : null;
+        if(waiting!=null) {waiting.add(new Object[] {child, constraints});}
+        else {parent.add(child, constraints);}
+    }
+    
     /**
      * Get the current MathML string represented by this component.
      * @return the MathML, like <math>x</math>
@@ -84,15 +353,32 @@ public class JMathDisplayer extends JPanel implements MathComponent {
         return mathElement.outerHtml();
     }
     
+    /**
+     * Display this MathML string.
+     * Nothing is rebuilt if the string is the one currently displayed.
+     * @param mathml the MathML, like &lt;math&gt;x&lt;/math&gt;
+     * @throws IllegalArgumentException if the formula is nested deeper than {@link #MAX_DEPTH} elements
+     */
     public void setMathML(String mathml) {
-        try {
-            removeAll();
-            foreground = null;
-            setMathElement(JsoupTools.parse(mathml).body().child(0));
-            doLayout();
-        } catch (MathMLParsingException ex) {
-            Logger.getLogger(JMathDisplayer.class.getName()).log(Level.SEVERE, null, ex);
-        }
+        if(mathml.equals(mathMLSource)) {return;}
+        //A formula too deep is rejected before the current one is removed
+        Element element = JsoupTools.parse(mathml).body().child(0);
+        checkDepth(element);
+        removeAll();
+        foreground = null;
+        mathMLSource = null;
+        row = false;
+        //The subtrees of the previous formula would not match the new elements, and would keep them in memory
+        subtrees = null;
+        shared = false;
+        canonical = null;
+        canonicalFont = null;
+        canonicalForeground = null;
+        mathElement = element;
+        build(this);
+        mathMLSource = mathml;
+        invalidate();
+        doLayout();
     }
 
     /**
@@ -103,24 +389,195 @@ public class JMathDisplayer extends JPanel implements MathComponent {
         return mathElement;
     }
     
+    /**
+     * Get the module representing the element, like a {@link ModuleAction} for &lt;maction&gt;.
+     * @return the module, or null if the formula is not built yet
+     */
+    public Module getModule() {
+        return module;
+    }
+    
+    /**
+     * Measure this component and its children. The result is kept until the
+     * component or one of its descendants is invalidated.
+     * @return the size and baseline of the formula
+     */
+    public MathMetrics measure() {
+        if(metrics==null) {
+            //The descendants that are not measured yet are measured first, from the deepest,
+            //so that measuring a node only reads the measures of its children
+            List<JMathDisplayer> nodes = new ArrayList<>();
+            Deque<JMathDisplayer> stack = new ArrayDeque<>();
+            stack.push(this);
+            while(!stack.isEmpty()) {
+                JMathDisplayer d = stack.pop();
+                nodes.add(d);
+                for(Component c : d.getComponents()) {
+                    if(c instanceof JMathDisplayer && ((JMathDisplayer)c).metrics==null) {stack.push((JMathDisplayer)c);}
+                }
+            }
+            for(int i=nodes.size()-1; i>=0; i--) {nodes.get(i).measureNode();}
+        }
+        return metrics;
+    }
+    
+    /** Measure this component, whose children are already measured **/
+    private void measureNode() {
+        LayoutManager layout = getLayout();
+        if(shared) {metrics = getCanonical().measure();}
+        else if(layout instanceof MathLayout) {metrics = ((MathLayout)layout).measure(this);}
+        else {
+            Dimension d = super.getPreferredSize();
+            int ascent = Math.round(super.getAlignmentY()*d.height);
+            metrics = new MathMetrics(d.width, ascent, d.height-ascent);
+        }
+    }
+    
+    @Override
+    public Dimension getPreferredSize() {
+        if(isPreferredSizeSet()) {return super.getPreferredSize();}
+        MathMetrics m = measure();
+        return new Dimension(m.getWidth(), m.getHeight());
+    }
+    
     @Override
     public Dimension getMaximumSize() {
-        return super.getPreferredSize();
+        return getPreferredSize();
+    }
+    
+    /**
+     * Get the baseline of the formula, from its measured ascent. When the component
+     * is taller than the formula, the formula is centered vertically.
+     * @param width the width of the component
+     * @param height the height of the component
+     * @return the distance between the top of the component and the baseline
+     */
+    @Override
+    public int getBaseline(int width, int height) {
+        if(width<0 || height<0) {throw new IllegalArgumentException("Width and height must be >= 0");}
+        MathMetrics m = measure();
+        return (height-m.getHeight())/2+m.getAscent();
     }
     
+    @Override
+    public BaselineResizeBehavior getBaselineResizeBehavior() {
+        return BaselineResizeBehavior.CENTER_OFFSET;
+    }
+    
+    @Override
+    public float getAlignmentY() {
+        int height = getHeight();
+        return height<=0 ? 0f : getBaseline(getWidth(), height)/(float)height;
+    }
+    
+    /** Forget the measure of this component and its ancestors **/
+    @Override
+    public void invalidate() {
+        if(!resizing) {
+            Container c = this;
+            while(c instanceof JMathDisplayer && ((JMathDisplayer)c).metrics!=null) {
+                ((JMathDisplayer)c).metrics = null;
+                c = c.getParent();
+            }
+        }
+        super.invalidate();
+    }
+    
+    /**
+     * Outside of the event dispatch thread, Swing delays the revalidation to the event
+     * dispatch thread. A formula built by another thread, like the ones rendered offscreen,
+     * is invalidated immediately instead, so that its measure is not discarded later.
+     */
+    @Override
+    public void revalidate() {
+        if(SwingUtilities.isEventDispatchThread()) {super.revalidate();}
+        else {invalidate();}
+    }
+    
+    @Override
+    public void setBounds(int x, int y, int width, int height) {
+        resizing = true;
+        try {
+            super.setBounds(x, y, width, height);
+        } finally {
+            resizing = false;
+        }
+    }
+    
+    /**
+     * Lay out this component and its descendants, top-down. The descendants are
+     * laid out from a stack rather than recursively, as formulas can be very deep.
+     */
+    @Override
+    public void doLayout() {
+        Deque<JMathDisplayer> stack = new ArrayDeque<>();
+        stack.push(this);
+        while(!stack.isEmpty()) {
+            JMathDisplayer d = stack.pop();
+            d.layoutNode();
+            for(Component c : d.getComponents()) {
+                if(c instanceof JMathDisplayer) {stack.push((JMathDisplayer)c);}
+                else {c.doLayout();}
+            }
+        }
+        if(isDisplayable() && !(getParent() instanceof JMathDisplayer)) {schedulePreparation();}
+    }
+    
+    /** Place the children of this component **/
+    private void layoutNode() {super.doLayout();}
+    
+    /** Set the color of this component and of its descendants that don't have their own color **/
     @Override
     public void setForeground(Color color) {
-        if(foreground==null) {//We don't override the mathML color attribute
-            super.setForeground(color);
-            if(module!=null) for(Component c : getComponents()) {c.setForeground(color);}
+        if(foreground!=null) {return;}//We don't override the mathML color attribute
+        Deque<Component> stack = new ArrayDeque<>();
+        stack.push(this);
+        while(!stack.isEmpty()) {
+            Component c = stack.pop();
+            if(c instanceof JMathDisplayer) {
+                JMathDisplayer d = (JMathDisplayer) c;
+                if(d!=this && d.foreground!=null) {continue;}
+                d.setOwnForeground(color);
+                if(d.module!=null) for(Component child : d.getComponents()) {stack.push(child);}
+            } else {
+                c.setForeground(color);
+            }
         }
     }
+    private void setOwnForeground(Color color) {super.setForeground(color);}
+    
+    @Override
+    public Font getFont() {
+        return font==null ? super.getFont() : font;
+    }
     
+    /** Set the font of this component and of its descendants, scaled by their ratio **/
     @Override
     public void setFont(Font f) {
-        if(isScaleRatioSet()) f = f.deriveFont(f.getSize2D()*ratio);
-        for(Component c : getComponents()) {c.setFont(f);}
-        super.setFont(f);
+        Font old = getFont();
+        Deque<Component> components = new ArrayDeque<>();
+        Deque<Font> fonts = new ArrayDeque<>();
+        components.push(this);
+        fonts.push(f);
+        while(!components.isEmpty()) {
+            Component c = components.pop();
+            Font cf = fonts.pop();
+            if(c instanceof JMathDisplayer) {
+                JMathDisplayer d = (JMathDisplayer) c;
+                if(cf!=null && d.isScaleRatioSet()) cf = cf.deriveFont(cf.getSize2D()*d.ratio);
+                d.font = cf;
+                d.invalidate();
+                for(Component child : d.getComponents()) {
+                    components.push(child);
+                    fonts.push(cf);
+                }
+            } else {
+                c.setFont(cf);
+            }
+        }
+        firePropertyChange("font", old, getFont());
+        revalidate();
+        repaint();
     }
     
     @Override
@@ -130,10 +587,47 @@ public class JMathDisplayer extends JPanel implements MathComponent {
     }
     @Override
     public void setFontSize(float size) {
-        float newSize = isScaleRatioSet() ? size * ratio : size;
-        setFont(getFont().deriveFont(size));//Le ratio est appliqué par setFont
-        for(Component c : getComponents()) {if(c instanceof MathComponent) ((MathComponent)c).setFontSize(newSize);}
+        setFont(getFont().deriveFont(size));//Le ratio est appliqué par setFont, aux enfants aussi
+    }
+    
+    /**
+     * Get the width the lines of this formula must fit in. A row that is the only
+     * child of another row takes the wrap width of its parent.
+     * @return the width in pixels, or -1 if the formula is displayed on one line
+     */
+    public int getWrapWidth() {
+        JMathDisplayer d = this;
+        while(d.wrapWidth<0) {
+            Container parent = d.getParent();
+            if(!(parent instanceof JMathDisplayer) || parent.getComponentCount()!=1 || !isRow(parent) || !isRow(d)) {return -1;}
+            d = (JMathDisplayer) parent;
+        }
+        return d.wrapWidth;
+    }
+    
+    /**
+     * Set the width the lines of this formula must fit in. Long rows are then broken
+     * at their operators, and the MathML linebreak attributes are followed.
+     * @param width the width in pixels, or -1 to display the formula on one line
+     */
+    public void setWrapWidth(int width) {
+        this.wrapWidth = width;
+        //The rows that take this wrap width must be measured again
+        Component c = this;
+        while(c instanceof JMathDisplayer && isRow(c)) {
+            c.invalidate();
+            Container row = (Container) c;
+            c = row.getComponentCount()==1 ? row.getComponent(0) : null;
+        }
         invalidate();
+        revalidate();
+        repaint();
+    }
+    
+    /** Check if this component is a row that can be broken into lines **/
+    private static boolean isRow(Component c) {
+        LayoutManager layout = c instanceof Container ? ((Container)c).getLayout() : null;
+        return layout instanceof MathLayout.RowLayout && ((MathLayout.RowLayout)layout).isBreakable();
     }
     
     /**
@@ -151,13 +645,154 @@ public class JMathDisplayer extends JPanel implements MathComponent {
         this.ratio = ratio;
     }
     
+    /**
+     * Create the parts of the formula that are only built when they are displayed,
+     * like the cells of large tables, in this area. The root of a displayed formula does
+     * this for its visible area after each layout and when its viewport moves, but a component
+     * laid out outside of a window must be prepared before its final layout.
+     * This changes the components of the formula, so it must not be called while painting.
+     * @param area the area to prepare, in the coordinates of this component
+     */
+    public void prepare(Rectangle area) {
+        Deque<JMathDisplayer> displayers = new ArrayDeque<>();
+        Deque<Rectangle> areas = new ArrayDeque<>();
+        displayers.push(this);
+        areas.push(area);
+        while(!displayers.isEmpty()) {
+            JMathDisplayer d = displayers.pop();
+            Rectangle a = areas.pop();
+            if(d.module!=null && d.module.isLazy()) {d.module.prepare(a);}
+            for(Component c : d.getComponents()) {
+                if(c instanceof JMathDisplayer) {
+                    Rectangle r = a.intersection(c.getBounds());
+                    if(r.isEmpty()) {continue;}
+                    r.translate(-c.getX(), -c.getY());
+                    displayers.push((JMathDisplayer)c);
+                    areas.push(r);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Prepare the visible area once the current layout or scrolling is done, as the
+     * preparation may change the size of the formula.
+     */
+    private void schedulePreparation() {
+        if(preparing) {return;}
+        preparing = true;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                preparing = false;
+                if(!isDisplayable()) {return;}
+                Rectangle visible = getVisibleRect();
+                if(!visible.isEmpty()) {prepare(visible);}
+            }
+        });
+    }
+    
+    /** The root of the formula follows the viewport it is displayed in **/
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        if(getParent() instanceof JMathDisplayer) {return;}
+        viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, this);
+        if(viewport!=null) {
+            viewportListener = new ChangeListener() {
+                @Override
+                public void stateChanged(ChangeEvent e) {schedulePreparation();}
+            };
+            viewport.addChangeListener(viewportListener);
+        }
+    }
+    
+    @Override
+    public void removeNotify() {
+        if(viewport!=null) {
+            viewport.removeChangeListener(viewportListener);
+            viewport = null;
+            viewportListener = null;
+        }
+        super.removeNotify();
+    }
+    
     @Override
     public void paint(Graphics g) {
         super.paint(g);
+        paintLines(g);
+    }
+    
+    /**
+     * Paint the descendants from a stack rather than through the recursive painting of
+     * Swing, as formulas can be very deep. Each displayer is painted the way
+     * {@link #paint(Graphics)} does: its background and border, its children, then its lines.
+     */
+    @Override
+    protected void paintChildren(Graphics g) {
+        Deque<PaintTask> tasks = new ArrayDeque<>();
+        pushChildren(this, g, tasks);
+        while(!tasks.isEmpty()) {
+            PaintTask task = tasks.pop();
+            Graphics cg = task.graphics;
+            if(task.lines) {
+                ((JMathDisplayer)task.component).paintLines(cg);
+                cg.dispose();
+            } else if(task.component instanceof JMathDisplayer) {
+                JMathDisplayer d = (JMathDisplayer) task.component;
+                d.paintComponent(cg);
+                d.paintBorder(cg);
+                tasks.push(new PaintTask(d, cg, true));
+                pushChildren(d, cg, tasks);
+            } else {
+                task.component.paint(cg);
+                cg.dispose();
+            }
+        }
+    }
+    
+    /** Prepare the painting of the visible children, in the order Swing paints them **/
+    private static void pushChildren(JMathDisplayer parent, Graphics g, Deque<PaintTask> tasks) {
+        Rectangle clip = g.getClipBounds();
+        for(Component c : parent.getComponents()) {
+            if(!c.isVisible() || (clip!=null && !clip.intersects(c.getBounds()))) {continue;}
+            Graphics cg = g.create(c.getX(), c.getY(), c.getWidth(), c.getHeight());
+            cg.setColor(c.getForeground());
+            cg.setFont(c.getFont());
+            tasks.push(new PaintTask(c, cg, false));
+        }
+    }
+    
+    /** Get the canonical displayer of this shared subtree, in the current style. The tiles of a formula can be painted concurrently. **/
+    private synchronized JMathDisplayer getCanonical() {
+        if(canonical==null || !Objects.equals(canonicalFont, getFont()) || !Objects.equals(canonicalForeground, getForeground())) {
+            canonicalFont = getFont();
+            canonicalForeground = getForeground();
+            canonical = subtrees.getCanonical(mathElement, canonicalFont, canonicalForeground);
+        }
+        return canonical;
+    }
+    
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        if(!shared) {return;}
+        JMathDisplayer c = getCanonical();
+        //Like the content of a displayer, the subtree is centered
+        Graphics cg = g.create((getWidth()-c.getWidth())/2, (getHeight()-c.getHeight())/2, c.getWidth(), c.getHeight());
+        try {
+            c.paint(cg);
+        } finally {
+            cg.dispose();
+        }
+    }
+    
+    /** Draw the lines of the module, like fraction bars **/
+    private void paintLines(Graphics g) {
         Graphics2D g2D = (Graphics2D)g;
         g2D.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         g2D.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
-        int strokeSize = Math.max((int)(getFontSize()/10f), 1);
+        int strokeSize = MathLayout.getLineWidth(this);
         g2D.setStroke(new BasicStroke(strokeSize, BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
         if(module!=null) module.paintLines(g2D);
     }
@@ -169,41 +804,11 @@ public class JMathDisplayer extends JPanel implements MathComponent {
      * @return the Module best suited to represent this Element
      */
     private void setMathElement(Element mathElement) throws MathMLParsingException {
+        ModuleRegistry.Factory factory = ModuleRegistry.get(row ? "mrow" : mathElement.tagName());
         Module m;
-        switch(mathElement.tagName()) {
-            case "mfrac" : m = new ModuleFraction(mathElement, this); break;
-            case "msqrt" : m = new ModuleSqrt(mathElement, this); break;
-            case "mroot" : m = new ModuleRoot(mathElement, this); break;
-            case "mfenced" : m = new ModuleFenced(mathElement, this); break;
-            case "mover" : m = new ModuleOver(mathElement, this); break;
-            case "munder" : m = new ModuleUnder(mathElement, this); break;
-            case "msub" : m = new ModuleSub(mathElement, this); break;
-            case "msup" : m = new ModuleSup(mathElement, this); break;
-            case "msubsup" : m = new ModuleSubSup(mathElement, this); break;
-            case "mmultiscripts" : m = new ModuleMultiscript(mathElement, this); break;
-            case "mtable" : m = new ModuleTable(mathElement, this); break;
-            case "mrow" :
-            case "mlabeledtr" :
-            case "mtr" :
-            case "mtd" :
-            case "mtext" :
-            case "math" :
-            case "mn" :
-            case "mi" : m = new ModuleRow(mathElement, this); break;
-            case "menclose" :
-                String notation = mathElement.attr("notation");
-                if("radical".equals(notation)) {
-                    mathElement.tagName("msqrt");
-                    m = new ModuleSqrt(mathElement, this);
-                } else {
-                    m = new ModuleEnclose(mathElement, this, notation);
-                }
-                break;
-            case "mo" : 
-                if(mathElement.text().trim().equals("{") && mathElement.nextElementSibling()!=null) {m = new ModuleFenceOperator(mathElement, this);}
-                else {m = new ModuleRow(mathElement, this);}
-                break;
-            default: m = new Module(new Element(Tag.valueOf("math"),""), this, null) {
+        if(factory!=null) {m = factory.create(mathElement, this);}
+        else {
+            m = new Module(new Element(Tag.valueOf("math"),""), this, null) {
                 @Override
                 public void paintLines(Graphics2D g) {}
             };
@@ -217,34 +822,83 @@ public class JMathDisplayer extends JPanel implements MathComponent {
     
     /**
      * Check if the JMathDisplayer knows how to represent this tag
-     * @param tag the tag to look for
+     * @param mathElement the element whose tag to look for
      * @return true if the tag is handled, false otherwise
+     * @see ModuleRegistry
      */
     public static boolean isModuleAvailable(Element mathElement) {
-        String[] known = {
-            "mrow",
-            "menclose",
-            "mroot",
-            "mfrac",
-            "msqrt",
-            "math",
-            "mfenced",
-            "msub",
-            "msup",
-            "msubsup",
-            "munder",
-            "mover",
-            "munderover",
-            "mmultiscripts",
-            "mtable",
-            "mlabeledtr",
-            "mtr",
-            "mtd",
-            "mtext",
-            "mn",
-            "mi",
-            "mo"
-        };
-        return Arrays.asList(known).contains(mathElement.tagName());
+        return ModuleRegistry.isRegistered(mathElement.tagName());
+    }
+    
+    /**
+     * The displayers of a formula being built. Installing a displayer creates its
+     * children, which are pushed on the pending displayers of the build of the thread.
+     * When other threads are idle, the oldest pending displayers, which are the roots
+     * of the largest subtrees, are given to a new build run by them.
+     **/
+    private static final class Build extends RecursiveAction {
+        /** The displayers created, whose module is not installed yet **/
+        private final Deque<JMathDisplayer> pending = new ArrayDeque<>();
+        /** The displayers whose module is installed **/
+        private final List<JMathDisplayer> built = new ArrayList<>();
+        /** The builds sharing the work of this one **/
+        private final List<Build> forks = new ArrayList<>();
+        
+        /** Install the pending displayers, and the displayers they create **/
+        private void install() {
+            Build previous = BUILD.get();
+            BUILD.set(this);
+            try {
+                while(!pending.isEmpty()) {
+                    JMathDisplayer d = pending.pop();
+                    d.install();
+                    built.add(d);
+                    if(built.size()%SPLIT_INTERVAL==0 && pending.size()>1) {share();}
+                }
+            } finally {
+                if(previous==null) {BUILD.remove();}
+                else {BUILD.set(previous);}
+            }
+        }
+        
+        /** Give some of the pending displayers to other threads **/
+        private void share() {
+            ForkJoinPool buildPool = getBuildPool();
+            if(buildPool.getParallelism()<2) {return;}
+            if(getPool()!=buildPool) {
+                //Large formula built by another thread: the rest of the work goes to the pool
+                if(built.size()<parallelThreshold) {return;}
+                Build rest = new Build();
+                while(!pending.isEmpty()) {rest.pending.addLast(pending.pop());}
+                buildPool.invoke(rest);
+                built.addAll(rest.built);
+            } else if(getSurplusQueuedTaskCount()<=0) {
+                Build half = new Build();
+                for(int n = pending.size()/2; n>0; n--) {half.pending.addFirst(pending.removeLast());}
+                forks.add(half);
+                half.fork();
+            }
+        }
+        
+        @Override
+        protected void compute() {
+            install();
+            for(Build fork : forks) {
+                fork.join();
+                built.addAll(fork.built);
+            }
+        }
+    }
+    
+    /** A component to paint, or the lines of a displayer to paint after its children **/
+    private static final class PaintTask {
+        private final Component component;
+        private final Graphics graphics;
+        private final boolean lines;
+        private PaintTask(Component component, Graphics graphics, boolean lines) {
+            this.component = component;
+            this.graphics = graphics;
+            this.lines = lines;
+        }
     }
 }
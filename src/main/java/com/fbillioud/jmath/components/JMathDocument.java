@@ -0,0 +1,389 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.components;
+
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Insets;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.Scrollable;
+import javax.swing.SwingConstants;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * A long list of formulas stacked vertically, meant to be displayed in a JScrollPane.
+ * Only the formulas close to the visible area are built. Formulas that were never
+ * displayed are given an estimated height, and once measured, only their size is
+ * kept: their components are released when they scroll far away.
+ * Opening a document doesn't build nor measure anything, and finding the formula
+ * at some position costs O(log n).
+ * <p>
+ * The formulas are built when the document is laid out and when its viewport moves,
+ * never while it is painted.
+ * @author François Billioud
+ */
+public class JMathDocument extends JComponent implements Scrollable {
+    /** The MathML of the formulas **/
+    private final List<String> formulas = new ArrayList<>();
+    /** The formulas that were measured **/
+    private final BitSet measured = new BitSet();
+    /**
+     * Fenwick tree of the difference between the real height of the formulas and the
+     * estimated height. This gives the position of any formula in O(log n).
+     * Index 0 is unused.
+     **/
+    private int[] corrections = new int[1];
+    /** The widest formula measured **/
+    private int maxWidth = 0;
+    /** The displayers currently built, by formula index **/
+    private final Map<Integer, JMathDisplayer> live = new HashMap<>();
+
+    /** Vertical space between two formulas **/
+    private int gap = 4;
+    /** The height given to the formulas that were not measured yet, or -1 to deduce it from the font **/
+    private int estimatedHeight = -1;
+    /** The estimated height in use. The corrections are relative to it, so it only changes with them **/
+    private int estimate = 30;
+    /** The font the estimate and the measures were computed with, which can be inherited from the parent **/
+    private Font geometryFont;
+    /** Number of viewport heights, above and below the visible area, where formulas are prepared in advance **/
+    private float prefetch = 1f;
+    /** Number of viewport heights, above and below the visible area, after which the formulas are released **/
+    private float release = 3f;
+    /** True while the visible area is being updated, as moving the viewport notifies it again **/
+    private boolean updating = false;
+    /** Update the formulas when the document is scrolled or the viewport resized **/
+    private final ChangeListener viewportListener = new ChangeListener() {
+        @Override
+        public void stateChanged(ChangeEvent e) {updateVisibleArea();}
+    };
+
+    public JMathDocument() {this(new ArrayList<String>());}
+    /**
+     * Create a document displaying these formulas.
+     * @param formulas the MathML strings of the formulas
+     */
+    public JMathDocument(List<String> formulas) {
+        setOpaque(false);
+        setFormulas(formulas);
+    }
+
+    /** Replace all the formulas **/
+    public final void setFormulas(List<String> formulas) {
+        this.formulas.clear();
+        this.formulas.addAll(formulas);
+        resetGeometry();
+    }
+
+    /** Add a formula at the end of the document **/
+    public void addFormula(String mathML) {
+        formulas.add(mathML);
+        int n = formulas.size();
+        if(corrections.length<=n) {
+            //The Fenwick tree is rebuilt at the new size
+            int[] values = new int[n];
+            for(int i=0; i<n-1; i++) {values[i] = getHeight(i)-getEstimatedHeight();}
+            corrections = new int[Math.max(2*n, 16)+1];
+            for(int i=0; i<n-1; i++) {addCorrection(i, values[i]);}
+        }
+        revalidate();
+        repaint();
+    }
+
+    public int getFormulaCount() {return formulas.size();}
+    public String getFormula(int index) {return formulas.get(index);}
+
+    /** Space between two formulas **/
+    public int getGap() {return gap;}
+    public void setGap(int gap) {this.gap = gap; revalidate(); repaint();}
+
+    /** Height used for the formulas that were not measured yet **/
+    public int getEstimatedHeight() {return estimate;}
+    /**
+     * Set the height used for the formulas that were not measured yet.
+     * @param height the height, or -1 to use twice the line height of the font
+     */
+    public void setEstimatedHeight(int height) {
+        this.estimatedHeight = height;
+        resetGeometry();
+    }
+
+    /**
+     * Set how far from the visible area the formulas are prepared and released.
+     * @param prefetch the distance, in viewport heights, where formulas are built before being visible
+     * @param release the distance, in viewport heights, after which the formulas are released
+     */
+    public void setCacheDistances(float prefetch, float release) {
+        this.prefetch = prefetch;
+        this.release = Math.max(prefetch, release);
+    }
+
+    /** Number of formulas whose components are currently built **/
+    public int getLiveCount() {return live.size();}
+    /** Number of formulas whose size is known exactly **/
+    public int getMeasuredCount() {return measured.cardinality();}
+
+    @Override
+    public void setFont(Font font) {
+        super.setFont(font);
+        resetGeometry();
+    }
+
+    /** Forget every measure and component if the font changed since they were computed, like when the font is inherited **/
+    private void updateFont() {
+        if(!Objects.equals(getFont(), geometryFont)) {resetGeometry();}
+    }
+
+    /** Forget every measure and component **/
+    private void resetGeometry() {
+        Font font = getFont();
+        geometryFont = font;
+        estimate = estimatedHeight>=0 ? estimatedHeight : font==null ? 30 : 2*getFontMetrics(font).getHeight();
+        measured.clear();
+        live.clear();
+        maxWidth = 0;
+        corrections = new int[Math.max(formulas.size()+1, 16)];
+        revalidate();
+        repaint();
+    }
+
+    /** Add the value to the correction of the formula i in the Fenwick tree **/
+    private void addCorrection(int i, int value) {
+        for(int k=i+1; k<corrections.length; k+=k&-k) {corrections[k] += value;}
+    }
+    /** Sum of the corrections of the formulas before i **/
+    private int correctionsBefore(int i) {
+        int sum = 0;
+        for(int k=i; k>0; k-=k&-k) {sum += corrections[k];}
+        return sum;
+    }
+
+    /** The current height of the formula, exact or estimated **/
+    private int getHeight(int i) {
+        return correctionsBefore(i+1)-correctionsBefore(i)+getEstimatedHeight();
+    }
+
+    /** Position of the top of the formula i, or the bottom of the document for i = getFormulaCount() **/
+    private int getTop(int i) {
+        return getInsets().top+i*(getEstimatedHeight()+gap)+correctionsBefore(i);
+    }
+
+    /**
+     * Get the bounds of the formula, exact if it was measured, estimated otherwise.
+     * @param index the index of the formula
+     * @return the bounds in the coordinates of this component
+     */
+    public Rectangle getFormulaBounds(int index) {
+        JMathDisplayer displayer = live.get(index);
+        int width = displayer==null ? maxWidth : displayer.getWidth();
+        return new Rectangle(getInsets().left, getTop(index), width, getHeight(index));
+    }
+
+    /**
+     * Find the formula at this height.
+     * @param y the position in the coordinates of this component
+     * @return the index of the formula at y or just above, clamped to the valid indexes,
+     * or -1 if the document is empty
+     */
+    public int getFormulaAt(int y) {
+        int n = formulas.size();
+        if(n==0) {return -1;}
+        int target = y-getInsets().top, step = getEstimatedHeight()+gap;
+        //Walk down the Fenwick tree to find the last formula whose top is at or above target
+        int pos = 0, acc = 0;
+        for(int bit = Integer.highestOneBit(corrections.length-1); bit>0; bit>>=1) {
+            int next = pos+bit;
+            if(next<=n && next<corrections.length && next*step+acc+corrections[next]<=target) {
+                pos = next;
+                acc += corrections[next];
+            }
+        }
+        return Math.max(0, Math.min(pos, n-1));
+    }
+
+    /**
+     * Get the displayer of the formula, building and measuring it if needed.
+     * @param index the index of the formula
+     * @return the displayer
+     */
+    private JMathDisplayer prepare(int index) {
+        JMathDisplayer displayer = live.get(index);
+        if(displayer==null) {
+            built = true;
+            displayer = DisplayerPool.createStamp(formulas.get(index), getFont(), getForeground());
+            live.put(index, displayer);
+            if(!measured.get(index)) {
+                measured.set(index);
+                addCorrection(index, displayer.getHeight()-getHeight(index));
+                maxWidth = Math.max(maxWidth, displayer.getWidth());
+            }
+        }
+        return displayer;
+    }
+
+    /**
+     * Build and measure the formulas in this area. As estimates get replaced by exact
+     * heights, the formulas move, so this is repeated until the area is covered.
+     * @return true if some formula was measured for the first time
+     */
+    private boolean prepare(int top, int bottom) {
+        if(formulas.isEmpty()) {return false;}
+        boolean changed = false;
+        for(int i = getFormulaAt(top); i<formulas.size() && getTop(i)<=bottom; i++) {
+            changed |= !measured.get(i);
+            prepare(i);
+        }
+        return changed;
+    }
+
+    /** Set when a displayer was built, so that the area gets painted again **/
+    private boolean built = false;
+
+    /** Release the formulas outside of this area **/
+    private void release(int top, int bottom) {
+        for(Iterator<Map.Entry<Integer, JMathDisplayer>> iter = live.entrySet().iterator(); iter.hasNext();) {
+            int i = iter.next().getKey();
+            if(getTop(i+1)<top || getTop(i)>bottom) {iter.remove();}
+        }
+    }
+
+    /**
+     * Build the formulas close to the visible area, and release the ones far from it.
+     * The first visible formula must not move when the formulas above it get measured,
+     * so the viewport follows it.
+     */
+    private void updateVisibleArea() {
+        if(updating || formulas.isEmpty()) {return;}
+        updating = true;
+        try {
+            built = false;
+            Rectangle visible = getVisibleRect();
+            int h = Math.max(visible.height, 1);
+            int anchor = getFormulaAt(visible.y), anchorTop = getTop(anchor);
+            boolean changed = prepare((int)(visible.y-prefetch*h), (int)(visible.y+h+prefetch*h));
+            int shift = getTop(anchor)-anchorTop;
+            if(shift!=0 && getParent() instanceof JViewport) {
+                setSize(getWidth(), Math.max(getHeight(), getPreferredSize().height));
+                ((JViewport)getParent()).setViewPosition(new Point(visible.x, Math.max(0, visible.y+shift)));
+                visible = getVisibleRect();
+                changed |= prepare(visible.y, visible.y+visible.height);
+            }
+            release((int)(visible.y-release*h), (int)(visible.y+h+release*h));
+            if(changed) {revalidate();}
+            //The viewport may have painted the area before it notified the document
+            if(changed || built) {repaint(visible);}
+        } finally {
+            updating = false;
+        }
+    }
+
+    @Override
+    public void doLayout() {
+        updateFont();
+        super.doLayout();
+        updateVisibleArea();
+    }
+
+    @Override
+    public void addNotify() {
+        super.addNotify();
+        updateFont();
+        if(getParent() instanceof JViewport) {((JViewport)getParent()).addChangeListener(viewportListener);}
+    }
+
+    @Override
+    public void removeNotify() {
+        if(getParent() instanceof JViewport) {((JViewport)getParent()).removeChangeListener(viewportListener);}
+        super.removeNotify();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        if(formulas.isEmpty()) {return;}
+        Rectangle clip = g.getClipBounds();
+        if(clip==null) {clip = getVisibleRect();}
+        Insets insets = getInsets();
+        for(int i = getFormulaAt(clip.y); i<formulas.size(); i++) {
+            int top = getTop(i);
+            if(top>clip.y+clip.height) {break;}
+            //The formulas not built yet are painted once the visible area is updated
+            JMathDisplayer displayer = live.get(i);
+            if(displayer==null) {continue;}
+            Graphics cg = g.create(insets.left, top, displayer.getWidth(), displayer.getHeight());
+            try {
+                displayer.paint(cg);
+            } finally {
+                cg.dispose();
+            }
+        }
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if(isPreferredSizeSet()) {return super.getPreferredSize();}
+        Insets insets = getInsets();
+        return new Dimension(maxWidth+insets.left+insets.right, getTop(formulas.size())+insets.bottom);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        Dimension d = getPreferredSize();
+        return new Dimension(d.width, Math.min(d.height, 10*getEstimatedHeight()));
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        if(orientation==SwingConstants.HORIZONTAL) {return Math.max(1, getFont().getSize());}
+        //Scroll to the next or previous formula
+        int i = getFormulaAt(visibleRect.y);
+        if(i<0) {return 1;}
+        int top = getTop(i);
+        if(direction<0) {return top<visibleRect.y ? visibleRect.y-top : getHeight(Math.max(i-1, 0))+gap;}
+        return Math.max(1, getTop(i+1)-visibleRect.y);
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation==SwingConstants.HORIZONTAL ? visibleRect.width : visibleRect.height;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return getParent() instanceof JViewport && getParent().getWidth()>getPreferredSize().width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return getParent() instanceof JViewport && getParent().getHeight()>getPreferredSize().height;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString()+"[formulas="+formulas.size()+",measured="+measured.cardinality()+",live="+live.size()+"]";
+    }
+}
@@ -18,14 +18,32 @@ package com.fbillioud.jmath.components;
 import com.fbillioud.jmath.MathComponent;
 import java.awt.Dimension;
 import java.awt.Font;
+import java.awt.Graphics;
 import java.awt.font.LineMetrics;
+import java.util.HashMap;
+import java.util.Map;
 import javax.swing.JLabel;
+import javax.swing.SwingUtilities;
+import javax.swing.plaf.ComponentUI;
+import javax.swing.plaf.basic.BasicLabelUI;
 
 /**
  *
  * @author François Billioud
  */
 public class JMathLabel extends JLabel implements MathComponent {
+    /**
+     * The UI of the labels is shared, and stores the layout of the label it paints or measures.
+     * Outside of the EDT, each thread uses its own instances.
+     **/
+    private static final ThreadLocal<Map<Class<?>, ComponentUI>> PAINTERS = new ThreadLocal<Map<Class<?>, ComponentUI>>() {
+        @Override
+        protected Map<Class<?>, ComponentUI> initialValue() {return new HashMap<>();}
+    };
+    /** The last baseline computed, and the size, text and font it was computed for **/
+    private int baseline, baselineWidth = -1, baselineHeight = -1;
+    private String baselineText;
+    private Font baselineFont;
 
     public JMathLabel(String text) {
         super(text);
@@ -42,6 +60,52 @@ public class JMathLabel extends JLabel implements MathComponent {
         super.setFont(isItalic() ? font.deriveFont(Font.ITALIC+(font.isBold() ? Font.BOLD : 0)) : font);
     }
 
+    /** Get the UI to paint or measure this label with: its own on the EDT, a copy for this thread elsewhere **/
+    private ComponentUI getPainter() {
+        if(!(ui instanceof BasicLabelUI) || SwingUtilities.isEventDispatchThread()) {return ui;}
+        ComponentUI painter = PAINTERS.get().get(ui.getClass());
+        if(painter==null) {
+            try {
+                painter = ui.getClass().getConstructor().newInstance();
+            } catch(ReflectiveOperationException ex) {
+                return ui;
+            }
+            PAINTERS.get().put(ui.getClass(), painter);
+        }
+        return painter;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        ComponentUI painter = getPainter();
+        if(painter==ui) {super.paintComponent(g); return;}
+        Graphics scratch = g.create();
+        try {
+            painter.update(scratch, this);
+        } finally {
+            scratch.dispose();
+        }
+    }
+
+    /**
+     * The baseline is kept for the size, text and font it was computed for. The layout reads it,
+     * so that painting, which may happen on several threads, doesn't ask the UI again.
+     */
+    @Override
+    public synchronized int getBaseline(int width, int height) {
+        String text = getText();
+        Font font = getFont();
+        if(width!=baselineWidth || height!=baselineHeight || text!=baselineText || font!=baselineFont) {
+            ComponentUI painter = getPainter();
+            baseline = painter==ui ? super.getBaseline(width, height) : painter.getBaseline(this, width, height);
+            baselineWidth = width;
+            baselineHeight = height;
+            baselineText = text;
+            baselineFont = font;
+        }
+        return baseline;
+    }
+
     @Override
     public float getAlignmentY() {
         LineMetrics fm = getFontMetrics(getFont()).getLineMetrics(getText(), getGraphics());
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.components;
+
+import javax.swing.text.ViewFactory;
+import javax.swing.text.html.HTMLEditorKit;
+
+/**
+ * An HTMLEditorKit displaying the MathML it contains.
+ * Use it with <code>editorPane.setEditorKit(new MathEditorKit())</code>.
+ * @author François Billioud
+ */
+public class MathEditorKit extends HTMLEditorKit {
+    private final ViewFactory factory = new MathViewFactory();
+
+    @Override
+    public ViewFactory getViewFactory() {
+        return factory;
+    }
+}
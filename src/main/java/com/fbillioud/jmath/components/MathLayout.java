@@ -16,19 +16,22 @@
 package com.fbillioud.jmath.components;
 
 import com.fbillioud.jmath.DrawShape;
+import com.fbillioud.jmath.MathComponent;
 import java.awt.BasicStroke;
 import java.awt.Component;
 import java.awt.Container;
 import java.awt.Dimension;
-import java.awt.FontMetrics;
+import java.awt.Font;
 import java.awt.Graphics2D;
 import java.awt.Insets;
 import java.awt.LayoutManager2;
 import java.awt.Point;
 import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.ListIterator;
-import javax.swing.JPanel;
+import java.util.Map;
 
 /**
  * The MathLayout is responsible for the size and position of
@@ -51,15 +54,21 @@ public abstract class MathLayout implements LayoutManager2 {
         return d;
     }
     
+    /** The width of the lines, read from the font of the target when it is measured and laid out **/
     private int lineWidth = -1;
     protected int getLineWidth() {return lineWidth;}
     
+    /** The position and size of the content, without the insets, during the last layout **/
+    private int contentX, contentY, contentWidth, contentHeight;
+    /** Get the size of the content, without the insets, during the last layout **/
+    protected Dimension getContentSize() {return new Dimension(contentWidth, contentHeight);}
+    
+    /**
+     * Draw the lines with the geometry recorded by the last layout. Painting only reads
+     * the layout, so the tiles of a formula can be painted concurrently.
+     **/
     public void paintLines(Graphics2D g, Container target) {
-        Dimension d = layoutSize(target, SIZE.CURRENT);
-        int x = (target.getWidth()-d.width)/2;
-        int y = (target.getHeight()-d.height)/2;
-        lineWidth = getLineWidth(g);
-        paintLines(g, target, x, y);
+        paintLines(g, target, contentX, contentY);
     }
     abstract void paintLines(Graphics2D g, Container target, int x, int y);
     
@@ -71,25 +80,79 @@ public abstract class MathLayout implements LayoutManager2 {
         return new Dimension(d.width+insets.left+insets.right, d.height+insets.top+insets.bottom);
     }
     protected abstract void layoutContainer(Container target, int offsetX, int offsetY);
-    protected abstract float layoutYAlignment(Container target, float lineHeight, float height);
+    /**
+     * Compute the distance between the top of the content of the target and its baseline.
+     * The children have their measured size when this is called.
+     * @param target the container to measure
+     * @param lineAscent the ascent of the font of the target
+     * @param height the height of the content of the target, without the insets
+     * @return the ascent of the content, in pixels
+     */
+    protected abstract int layoutAscent(Container target, int lineAscent, int height);
+    
+    /**
+     * Get the distance between the top of the component and its baseline.
+     * @param c the component, with its final size
+     * @return the ascent of the component in pixels
+     */
+    protected static int getAscent(Component c) {
+        if(c==null) {return 0;}
+        int baseline = c.getBaseline(c.getWidth(), c.getHeight());
+        return baseline>=0 ? baseline : Math.round(c.getAlignmentY()*c.getHeight());
+    }
+    /** Number of times a container was laid out by this layout **/
+    private int layoutCount = 0;
+    /**
+     * Get the number of times a container was laid out by this layout. As painting
+     * never changes the layout, this stays the same when a stable formula is repainted.
+     * @return the number of layouts done
+     */
+    public int getLayoutCount() {return layoutCount;}
+    /** Number of times a container was measured by this layout **/
+    private int measureCount = 0;
+    /** Get the number of times a container was measured by this layout **/
+    public int getMeasureCount() {return measureCount;}
+    
+    /**
+     * First phase of the layout: measure the target, bottom-up. The children are
+     * measured first and given their preferred size, as the size and baseline of
+     * the target depend on them. As {@link JMathDisplayer} keeps its measure until
+     * it is invalidated, each node of a formula is measured once.
+     * @param target the container to measure
+     * @return the width of the target and its height above and below the baseline
+     */
+    public MathMetrics measure(Container target) {
+        measureCount++;
+        lineWidth = getLineWidth(target);
+        for(Component c : target.getComponents()) {c.setSize(c.getPreferredSize());}
+        Dimension d = layoutSize(target, SIZE.PREFERRED);
+        Insets insets = target.getInsets();
+        int lineAscent = target.getFontMetrics(target.getFont()).getAscent();
+        int ascent = insets.top+layoutAscent(target, lineAscent, d.height-insets.top-insets.bottom);
+        return new MathMetrics(d.width, ascent, d.height-ascent);
+    }
+    
+    /**
+     * Second phase of the layout: place the children of the target, top-down.
+     * The children are given their measured size and placed, then they are laid out themselves,
+     * unless the target is a {@link JMathDisplayer}, which lays out its descendants without recursion.
+     * @param target the container to lay out
+     */
     @Override
     public void layoutContainer(Container target) {
-        for(Component c : target.getComponents()) {
-            c.setSize(c.getPreferredSize());
-            c.doLayout();
-        }
+        layoutCount++;
+        lineWidth = getLineWidth(target);
+        for(Component c : target.getComponents()) {c.setSize(c.getPreferredSize());}
         Dimension d = layoutSize(target, SIZE.PREFERRED);
-        int x = (target.getWidth()-d.width)/2+target.getInsets().left;
-        int y = (target.getHeight()-d.height)/2+target.getInsets().top;
-        layoutContainer(target, x, y);
-//        if(target instanceof JComponent) {
-//            FontMetrics fm = target.getFontMetrics(target.getFont());
-//            float lineHeight = fm.getAscent();
-//            float h = d.height;
-//            float yAlign = layoutYAlignment(target, lineHeight, h);
-////            if(target.getFontMetrics(target.getFont()).getAscent()>target.getHeight()*yAlign) {yAlign = 1-yAlign;}
-//            ((JComponent)target).setAlignmentY(yAlign);
-//        }
+        Insets insets = target.getInsets();
+        contentX = (target.getWidth()-d.width)/2;
+        contentY = (target.getHeight()-d.height)/2;
+        contentWidth = d.width-insets.left-insets.right;
+        contentHeight = d.height-insets.top-insets.bottom;
+        layoutContainer(target, contentX+insets.left, contentY+insets.top);
+        if(!(target instanceof JMathDisplayer)) {
+            for(Component c : target.getComponents()) {c.doLayout();}
+        }
     }
 
     @Override
@@ -101,11 +164,11 @@ public abstract class MathLayout implements LayoutManager2 {
     public float getLayoutAlignmentX(Container target) {return Component.LEFT_ALIGNMENT;}
     @Override
     public float getLayoutAlignmentY(Container target) {
-        FontMetrics fm = target.getFontMetrics(target.getFont());
-        float lineHeight = fm.getAscent();
-        float h = target.getHeight();
-        float yAlign = layoutYAlignment(target, lineHeight, h);
-        return yAlign;
+        Insets insets = target.getInsets();
+        int height = target.getHeight()-insets.top-insets.bottom;
+        if(height<=0) {return 0f;}
+        int lineAscent = target.getFontMetrics(target.getFont()).getAscent();
+        return (insets.top+layoutAscent(target, lineAscent, height))/(float)target.getHeight();
     }
 
     @Override
@@ -122,9 +185,11 @@ public abstract class MathLayout implements LayoutManager2 {
         if(!(g.getStroke() instanceof BasicStroke)) {return 1;}
         return (int) ((BasicStroke)g.getStroke()).getLineWidth();
     }
+    /** The width of the lines of the component, which is also the width of the stroke they are drawn with **/
     protected static int getLineWidth(Component c) {
         if(c==null) return 1;
-        return Math.max(c.getFont().getSize()/10,1);
+        float size = c instanceof MathComponent ? ((MathComponent)c).getFontSize() : c.getFont().getSize2D();
+        return Math.max((int)(size/10f),1);
     }
     
     public static class EncloseLayout extends RowLayout {
@@ -133,8 +198,10 @@ public abstract class MathLayout implements LayoutManager2 {
             this.notation = notation;
         }
         @Override
+        protected boolean isBreakable() {return false;}
+        @Override
         void paintLines(Graphics2D g, Container target, int x, int y) {
-            Dimension d = layoutSizeNoMargin(target, SIZE.PREFERRED);
+            Dimension d = getContentSize();
             int lw = getLineWidth();
             int top = y+lw, left = x+lw, right = x+d.width-lw, bottom = y+d.height-lw;
             switch(notation) {
@@ -172,6 +239,17 @@ public abstract class MathLayout implements LayoutManager2 {
             super.layoutContainer(target, offsetX+2*lw, offsetY+2*lw);
         }
         
+        @Override
+        protected int layoutAscent(Container target, int lineAscent, int height) {
+            int lw = getLineWidth();
+            if("circle".equals(notation)) {
+                Dimension d = super.layoutSizeNoMargin(target, SIZE.PREFERRED);
+                Dimension d2 = layoutSizeNoMargin(target, SIZE.PREFERRED);
+                return super.layoutAscent(target, lineAscent, height)+(d2.height-d.height)/2;
+            }
+            return super.layoutAscent(target, lineAscent, height)+2*lw;
+        }
+        
         @Override
         protected Dimension layoutSizeNoMargin(Container target, SIZE s) {
             Dimension d = super.layoutSizeNoMargin(target, s);
@@ -180,11 +258,48 @@ public abstract class MathLayout implements LayoutManager2 {
             return new Dimension(d.width+4*lw,d.height+4*lw);
         }
     }
+    /**
+     * Place the children on a line. A row whose displayer has a wrap width, or that is the
+     * only child of such a row, is broken into several lines at its operators, following
+     * their linebreak attribute: the breaks are chosen greedily, in linear time. The lines
+     * only depend on the wrap width, set with {@link JMathDisplayer#setWrapWidth(int)}: a
+     * container narrower than the row doesn't break it, as the measure of the formula would
+     * not follow the new height.
+     */
     public static class RowLayout extends MathLayout {
+        /** The kinds of break that can happen before a child **/
+        private static final byte NO_BREAK = 0, BREAK = 1, GOOD_BREAK = 2, BAD_BREAK = 3, NEWLINE = 4;
+        
         LinkedList<Component> components = new LinkedList<>();
+        /** True when the sizes of the children must be read again **/
+        private boolean stale = true;
+        /** The size and ascent of the children, read when the row was measured **/
+        private int[] widths = new int[0], heights = new int[0], ascents = new int[0];
+        /** The sum of the widths of the children before each child **/
+        private int[] offsets = {0};
+        /** The kind of break allowed before each child **/
+        private byte[] breaks = new byte[0];
+        /** The index of the first child of each line **/
+        private int[] lineStarts = {0};
+        
         @Override
         void paintLines(Graphics2D g, Container target, int x, int y) {}
         
+        /** Check if this row can be broken into several lines **/
+        protected boolean isBreakable() {return true;}
+        
+        /**
+         * Get the width the lines of the row must fit in.
+         * @param target the container to layout
+         * @return the width available, or Integer.MAX_VALUE if the row is not broken
+         */
+        private int getWrapWidth(Container target) {
+            if(!isBreakable() || !(target instanceof JMathDisplayer)) {return Integer.MAX_VALUE;}
+            int width = ((JMathDisplayer)target).getWrapWidth();
+            Insets insets = target.getInsets();
+            return width<0 ? Integer.MAX_VALUE : Math.max(0, width-insets.left-insets.right);
+        }
+        
         /**
          * Get the bounds of the container if all components where aligned on 0.
          * @param target the container to layout
@@ -197,41 +312,174 @@ public abstract class MathLayout implements LayoutManager2 {
             for(Component c : target.getComponents()) {
                 Dimension d = getSize(c, size);
                 //We align components on 0 to get the final size and baseline.
-                r.add(new Rectangle(new Point(x,-(int)(c.getAlignmentY()*c.getHeight())),d));
+                r.add(new Rectangle(new Point(x,-getAscent(c)),d));
                 x+=d.width;
             }
-            return r;
+            //An empty row, like mspace, has no size
+            return r.width<0 ? new Rectangle() : r;
+        }
+        
+        @Override
+        public MathMetrics measure(Container target) {
+            stale = true;
+            return super.measure(target);
+        }
+        
+        /** Read the sizes of the children and break the row, if it was measured since the last time **/
+        private void update(Container target) {
+            if(!stale && widths.length==target.getComponentCount()) {return;}
+            stale = false;
+            Component[] children = target.getComponents();
+            int n = children.length;
+            widths = new int[n];
+            heights = new int[n];
+            ascents = new int[n];
+            offsets = new int[n+1];
+            breaks = new byte[n+1];
+            for(int i=0; i<n; i++) {
+                Component c = children[i];
+                Dimension d = c.getPreferredSize();
+                widths[i] = d.width;
+                heights[i] = d.height;
+                ascents[i] = getAscent(c);
+                offsets[i+1] = offsets[i]+d.width;
+                readBreak(c, i);
+            }
+            breakLines(getWrapWidth(target));
+        }
+        
+        /** Read the break allowed around the child i from its MathML element **/
+        private void readBreak(Component c, int i) {
+            if(!(c instanceof JMathDisplayer)) {return;}
+            org.jsoup.nodes.Element e = ((JMathDisplayer)c).getMathMLElement();
+            String linebreak = e.attr("linebreak").trim();
+            //mspace is displayed as a row, but can still force a new line
+            if("newline".equals(linebreak)) {breaks[i] = NEWLINE; return;}
+            if(!"mo".equals(e.tagName()) || ((JMathDisplayer)c).getLayout() instanceof FenceOperatorLayout) {return;}
+            int at = "after".equals(e.attr("linebreakstyle").trim()) ? i+1 : i;
+            switch(linebreak) {
+                case "nobreak": return;
+                case "goodbreak": breaks[at] = GOOD_BREAK; break;
+                case "badbreak": breaks[at] = BAD_BREAK; break;
+                default: if(breaks[at]==NO_BREAK) {breaks[at] = BREAK;}
+            }
+        }
+        
+        /**
+         * Break the row greedily: each line takes as many children as possible, and is broken
+         * at the last operator that fits. A good break is preferred if the line is at least half
+         * full, and a bad break is only used when there is no other. Each child is visited once.
+         * @param width the width of the lines
+         */
+        private void breakLines(int width) {
+            int n = widths.length;
+            int[] starts = new int[4];
+            int lines = 1, start = 0;
+            int last = -1, good = -1, bad = -1;
+            for(int i=0; i<n; i++) {
+                if(i>start) {
+                    switch(breaks[i]) {
+                        case NEWLINE: last = good = bad = -1; start = i; break;
+                        case GOOD_BREAK: good = i; last = i; break;
+                        case BREAK: last = i; break;
+                        case BAD_BREAK: bad = i; break;
+                        default: break;
+                    }
+                    if(start==i) {
+                        if(lines==starts.length) {starts = Arrays.copyOf(starts, 2*lines);}
+                        starts[lines++] = i;
+                    }
+                }
+                while(offsets[i+1]-offsets[start]>width) {
+                    int at = good>start && offsets[good]-offsets[start]>=width/2 ? good : last>start ? last : bad>start ? bad : -1;
+                    if(at<0) {break;}
+                    if(lines==starts.length) {starts = Arrays.copyOf(starts, 2*lines);}
+                    starts[lines++] = at;
+                    start = at;
+                }
+            }
+            lineStarts = Arrays.copyOf(starts, lines);
+        }
+        
+        /** The width of the widest line **/
+        private int lineWidth() {
+            int max = 0;
+            for(int l=0; l<lineStarts.length; l++) {max = Math.max(max, offsets[lineEnd(l)]-offsets[lineStarts[l]]);}
+            return max;
+        }
+        private int lineEnd(int line) {return line+1<lineStarts.length ? lineStarts[line+1] : widths.length;}
+        /** The space between two lines **/
+        private int lineGap() {return 2*Math.max(getLineWidth(), 1);}
+        
+        /** The highest ascent of the children of the line **/
+        private int lineAscent(int line) {
+            int max = 0;
+            for(int i=lineStarts[line]; i<lineEnd(line); i++) {max = Math.max(max, ascents[i]);}
+            return max;
+        }
+        /** The lowest descent of the children of the line **/
+        private int lineDescent(int line) {
+            int max = Integer.MIN_VALUE;
+            for(int i=lineStarts[line]; i<lineEnd(line); i++) {max = Math.max(max, heights[i]-ascents[i]);}
+            return max;
         }
         
         @Override
         protected Dimension layoutSizeNoMargin(Container target, SIZE size) {
-            return relativeRow(target, size).getSize();
+            if(size!=SIZE.PREFERRED) {return relativeRow(target, size).getSize();}
+            update(target);
+            if(lineStarts.length==1) {return relativeRow(target, size).getSize();}
+            int height = (lineStarts.length-1)*lineGap();
+            for(int l=0; l<lineStarts.length; l++) {height += lineAscent(l)+lineDescent(l);}
+            return new Dimension(lineWidth(), height);
+        }
+        
+        @Override
+        public void layoutContainer(Container target) {
+            target.getPreferredSize();
+            update(target);
+            super.layoutContainer(target);
         }
 
         @Override
         protected void layoutContainer(Container target, int offsetX, int offsetY) {
-            int x=offsetX;
-            int baseLine = -relativeRow(target,SIZE.PREFERRED).y;
-            for(Component c : target.getComponents()) {
-                c.setLocation(x,offsetY+baseLine-(int)(c.getAlignmentY()*c.getHeight()));
-                x+=c.getWidth();
+            update(target);
+            Component[] children = target.getComponents();
+            if(lineStarts.length==1) {
+                int x=offsetX;
+                int baseLine = -relativeRow(target,SIZE.PREFERRED).y;
+                for(Component c : children) {
+                    c.setLocation(x,offsetY+baseLine-getAscent(c));
+                    x+=c.getWidth();
+                }
+                return;
+            }
+            int y = offsetY;
+            for(int l=0; l<lineStarts.length; l++) {
+                int baseLine = y+lineAscent(l);
+                for(int i=lineStarts[l]; i<lineEnd(l); i++) {
+                    children[i].setLocation(offsetX+offsets[i]-offsets[lineStarts[l]], baseLine-ascents[i]);
+                }
+                y = baseLine+lineDescent(l)+lineGap();
             }
         }
 
         @Override
-        protected float layoutYAlignment(Container target, float lineHeight, float height) {
-            float max = 0;
+        protected int layoutAscent(Container target, int lineAscent, int height) {
+            update(target);
+            if(lineStarts.length>1) {return lineAscent(0);}
+            int max = 0;
             for(Component c : components) {
-                float ha = c.getAlignmentY()*c.getHeight();
-                if(max<ha) max = ha;
+                int ascent = getAscent(c);
+                if(max<ascent) max = ascent;
             }
-            return max/height;
+            return max;
         }
         
         @Override
-        public void addLayoutComponent(String name, Component comp) {components.add(comp);}
+        public void addLayoutComponent(String name, Component comp) {components.add(comp); stale = true;}
         @Override
-        public void removeLayoutComponent(Component comp) {components.remove(comp);}
+        public void removeLayoutComponent(Component comp) {components.remove(comp); stale = true;}
         
     }
     public static class FracLayout extends MathLayout {
@@ -265,8 +513,8 @@ public abstract class MathLayout implements LayoutManager2 {
         }
         
         @Override
-        protected float layoutYAlignment(Container target, float lineHeight, float height) {
-            return numerator.getHeight()/height+lineHeight/(4f*height);
+        protected int layoutAscent(Container target, int lineAscent, int height) {
+            return (numerator==null ? 0 : numerator.getHeight())+Math.round(lineAscent/4f);
         }
         
     }
@@ -298,7 +546,7 @@ public abstract class MathLayout implements LayoutManager2 {
             int offset = x+lw;
 //            int h = (int) (bounds.height/2+arm)+y;
             int lineHeight = target.getFontMetrics(innerPane.getFont()).getAscent();
-            int h = (int) (bounds.height*innerPane.getAlignmentY()+2*lw+arm-lineHeight/3f)+y;
+            int h = (int) (getAscent(innerPane)+2*lw+arm-lineHeight/3f)+y;
 
             int[] xPoints = {offset, (offset+=arm), offset+=halfRoot, offset+=halfRoot, offset+=(bounds.width-lw)};
             int[] yPoints = {h, h-=arm, target.getHeight()-(int)(getVRootWidth(target)/3)-y, y+lw, y+lw};
@@ -320,13 +568,13 @@ public abstract class MathLayout implements LayoutManager2 {
             innerPane.setLocation((int)(x+2*lw+getRootArmWidth(target)+getVRootWidth(target)),y+lw*2);
             if(root!=null) {
                 float lineHeight = target.getFontMetrics(target.getFont()).getAscent();
-                root.setLocation(x, (int)(y+innerPane.getHeight()*innerPane.getAlignmentY()-lineHeight/3-root.getHeight()));
+                root.setLocation(x, (int)(y+getAscent(innerPane)-lineHeight/3-root.getHeight()));
             }
         }
         
         @Override
-        protected float layoutYAlignment(Container target, float lineHeight, float height) {
-            return innerPane == null ? 0f : (innerPane.getAlignmentY()*innerPane.getHeight()+2*getLineWidth())/height;
+        protected int layoutAscent(Container target, int lineAscent, int height) {
+            return innerPane == null ? 0 : getAscent(innerPane)+2*getLineWidth();
         }
         
     }
@@ -365,6 +613,7 @@ public abstract class MathLayout implements LayoutManager2 {
         void paintLines(Graphics2D g, Container target, int x, int y) {
             if(innerPane==null) {return;}
             int lw = getLineWidth();
+            x += (getContentSize().width-innerPane.getWidth())/2;
             if(underShape!=null) underShape.paint(g, x+lw, y+lw+innerPane.getHeight()+getOverHeight(), innerPane.getWidth()-2*lw, getUnderHeight());
             if(overShape!=null) overShape.paint(g, x+lw, y+lw, innerPane.getWidth()-2*lw, getOverHeight());
         }
@@ -384,21 +633,25 @@ public abstract class MathLayout implements LayoutManager2 {
         @Override
         protected Dimension layoutSizeNoMargin(Container target, SIZE size) {
             Dimension inner = getSize(innerPane, size);
-            return new Dimension(inner.width, inner.height+getOverHeight()+getUnderHeight());
+            //The scripts can be wider than the base, like the bounds of a sum
+            int width = inner.width;
+            if(overPane!=null) {width = Math.max(width, getSize(overPane, size).width);}
+            if(underPane!=null) {width = Math.max(width, getSize(underPane, size).width);}
+            return new Dimension(width, inner.height+getOverHeight()+getUnderHeight());
         }
         
         @Override
         public void layoutContainer(Container target, int x, int y) {
             if(innerPane==null) return;
-            innerPane.setLocation(x,y+getOverHeight());
-            if(overPane!=null) {overPane.setLocation(x, y);}
-            if(underPane!=null) {underPane.setLocation(x, y+innerPane.getHeight()+getOverHeight());}
+            int width = layoutSizeNoMargin(target, SIZE.CURRENT).width;
+            innerPane.setLocation(x+(width-innerPane.getWidth())/2,y+getOverHeight());
+            if(overPane!=null) {overPane.setLocation(x+(width-overPane.getWidth())/2, y);}
+            if(underPane!=null) {underPane.setLocation(x+(width-underPane.getWidth())/2, y+innerPane.getHeight()+getOverHeight());}
         }
         
         @Override
-        protected float layoutYAlignment(Container target, float lineHeight, float height) {
-//            return 1-getYAlignment(target)+getOverHeight()/(float)target.getPreferredSize().height;
-            return (lineHeight+getOverHeight())/height;
+        protected int layoutAscent(Container target, int lineAscent, int height) {
+            return (innerPane==null ? lineAscent : getAscent(innerPane))+getOverHeight();
         }
     }
     public static class MultiScriptLayout extends MathLayout {
@@ -448,8 +701,8 @@ public abstract class MathLayout implements LayoutManager2 {
         }
         
         @Override
-        protected float layoutYAlignment(Container target, float lineHeight, float height) {
-            return lineHeight/height;
+        protected int layoutAscent(Container target, int lineAscent, int height) {
+            return corePane==null ? lineAscent : getAscent(corePane);
         }
     }
     
@@ -510,8 +763,8 @@ public abstract class MathLayout implements LayoutManager2 {
         }
         
         @Override
-        protected float layoutYAlignment(Container target, float lineHeight, float height) {
-            return innerPane==null ? 0 : innerPane.getAlignmentY();
+        protected int layoutAscent(Container target, int lineAscent, int height) {
+            return innerPane==null ? 0 : getAscent(innerPane)+getInnerPadding();
         }
     }
     
@@ -554,143 +807,278 @@ public abstract class MathLayout implements LayoutManager2 {
             return new Dimension(fenceShape.getWidth(fake.height), fake.height);
         }
         @Override
-        protected float layoutYAlignment(Container target, float lineHeight, float height) {
-            if(siblingPane!=null) {siblingPane.doLayout();return siblingPane.getAlignmentY();}
-            return lineHeight/height;
+        protected int layoutAscent(Container target, int lineAscent, int height) {
+            return siblingPane==null ? lineAscent : getAscent(siblingPane);
         }
     }
     
     public static class TableLayout extends MathLayout {
-        private final LinkedList<LinkedList<Component>> table = new LinkedList<>();
+        /** The cells, by row then column. Missing cells are null. Unused for lazy tables **/
+        private Component[][] table = new Component[0][];
+        /** Number of rows and columns actually used **/
+        private int rows = 0, cols = 0;
+        /** The position of each cell, as (col, row), to remove it without scanning the table **/
+        private final Map<Component, Point> positions = new HashMap<>();
+        /** Width of each column and height of each row, computed by {@link #computeExtents(Container, SIZE)} **/
+        private int[] colWidths = new int[0], rowHeights = new int[0];
+        /** Total width and height of the table, spacing included, computed by {@link #computeExtents(Container, SIZE)} **/
+        private int tableWidth, tableHeight;
+        /** Position of the columns and rows during the last layout **/
+        private int[] colX = new int[0], rowY = new int[0];
+        /** Position of the borders between the columns and rows during the last layout, relative to the content **/
+        private int[] colLines = {0}, rowLines = {0};
         private boolean border = false;
         private int colCellSpace = 4;
         private int rowCellSpace = 0;
         private int colSpace = colCellSpace;
         private int rowSpace = rowCellSpace;
         
+        /** Estimates the size of the cells not created yet, for lazy tables. Null if the table is not lazy **/
+        private CellEstimator estimator = null;
+        /** For lazy tables, the largest preferred size measured in each column and row **/
+        private int[] measuredWidths, measuredHeights;
+        /** For lazy tables, the number of cells measured in each column and row **/
+        private int[] measuredInCol, measuredInRow;
+        /** For lazy tables, the cells measured, by row*cols+col **/
+        private BitSet measured;
+        /** The font used for the measures **/
+        private Font measuredFont;
+        
         public void setRowSpacing(int spacing) {rowCellSpace = spacing;rowSpace=spacing;}
         public void setColSpacing(int spacing) {colCellSpace = spacing;colSpace=spacing;}
         public void setDrawBorder(boolean draw) {border=draw;}
         
+        public int getRowCount() {return rows;}
+        public int getColumnCount() {return cols;}
+        
+        /**
+         * Declare that the cells of this table are created lazily. The layout then
+         * only knows the cells currently added, and uses the estimator for the
+         * columns and rows that were not completely measured yet.
+         * @param rows the number of rows of the table
+         * @param cols the number of columns of the table
+         * @param estimator the estimator of the columns and rows extents
+         */
+        public void setLazy(int rows, int cols, CellEstimator estimator) {
+            this.rows = rows;
+            this.cols = cols;
+            this.estimator = estimator;
+            resetMeasures();
+        }
+        public boolean isLazy() {return estimator!=null;}
+        
+        private void resetMeasures() {
+            measuredWidths = new int[cols];
+            measuredHeights = new int[rows];
+            measuredInCol = new int[cols];
+            measuredInRow = new int[rows];
+            measured = new BitSet();
+        }
+        
+        /** Estimate the size of the columns and rows of a lazy table **/
+        public static interface CellEstimator {
+            /** Estimate the width of the column, in the font of the target **/
+            int estimateColumnWidth(Container target, int col);
+            /** Estimate the height of the row, in the font of the target **/
+            int estimateRowHeight(Container target, int row);
+        }
+        
+        /** The column at this abscissa during the last layout, clamped to the existing columns **/
+        public int getColumnAt(int x) {return indexAt(colX, x);}
+        /** The row at this ordinate during the last layout, clamped to the existing rows **/
+        public int getRowAt(int y) {return indexAt(rowY, y);}
+        private static int indexAt(int[] starts, int v) {
+            int i = Arrays.binarySearch(starts, v);
+            return i>=0 ? i : Math.max(0, -i-2);
+        }
+        
         //TODO : Implement row/column alignment, row/column border, global frame border/alignment
         
-        private LinkedList<Integer> getRowHeights(SIZE size) {
-            LinkedList<Integer> heights = new LinkedList<>();
-            int sum = rowSpace;
-            for(LinkedList<Component> row : table) {
-                int height = 0;
-                for(Component cell : row) {
-                    int s = getSize(cell, size).height;
-                    if(height<s) {height = s;}
+        /** Compute the width of the columns and the height of the rows in a single pass over the cells **/
+        private void computeExtents(Container target, SIZE size) {
+            if(colWidths.length!=cols) {colWidths = new int[cols];} else {Arrays.fill(colWidths, 0);}
+            if(rowHeights.length!=rows) {rowHeights = new int[rows];} else {Arrays.fill(rowHeights, 0);}
+            if(isLazy()) {computeLazyExtents(target, size);}
+            else {
+                for(int i=0; i<rows; i++) {
+                    Component[] row = table[i];
+                    int height = 0;
+                    for(int j=0; j<row.length; j++) {
+                        Component cell = row[j];
+                        if(cell==null) {continue;}
+                        int w, h;
+                        if(size==SIZE.CURRENT) {w = cell.getWidth(); h = cell.getHeight();}
+                        else {Dimension d = getSize(cell, size); w = d.width; h = d.height;}
+                        if(height<h) {height = h;}
+                        if(colWidths[j]<w) {colWidths[j] = w;}
+                    }
+                    rowHeights[i] = height;
                 }
-                heights.add(height);
-                sum+=height+rowSpace;
             }
-            heights.add(sum);//Optimisation : we calculate the sum and add it as last element
-            return heights;
+            tableWidth = colSpace;
+            for(int width : colWidths) {tableWidth+=width+colSpace;}
+            tableHeight = rowSpace;
+            for(int height : rowHeights) {tableHeight+=height+rowSpace;}
         }
         
-        private LinkedList<Integer> getColWidths(SIZE size) {
-            LinkedList<Integer> widths = new LinkedList<>();
-            if(table.isEmpty()) {return widths;}
-            LinkedList<Component> row0 = table.get(0);
-            for(Component cell : row0) {
-                widths.add(getSize(cell, size).width);
-            }
-            for(LinkedList<Component> row : table) {
-                ListIterator<Integer> widthIter = widths.listIterator();
-                for(Component cell : row) {
-                    int width = widthIter.next();
-                    int s = getSize(cell, size).width;
-                    if(width<s) {widthIter.set(s);}
+        /**
+         * Compute the extents of a lazy table from the cells currently added, the
+         * previous measures, and the estimates of the columns and rows not completely measured.
+         */
+        private void computeLazyExtents(Container target, SIZE size) {
+            Font font = target.getFont();
+            if(font!=null && !font.equals(measuredFont)) {measuredFont = font; resetMeasures();}
+            for(Map.Entry<Component, Point> entry : positions.entrySet()) {
+                Component cell = entry.getKey();
+                Point p = entry.getValue();
+                int w, h;
+                if(size==SIZE.CURRENT) {w = cell.getWidth(); h = cell.getHeight();}
+                else {Dimension d = getSize(cell, size); w = d.width; h = d.height;}
+                if(size==SIZE.PREFERRED) {
+                    //The current size of a new cell is not meaningful: only the preferred sizes are recorded
+                    if(!measured.get(p.y*cols+p.x)) {
+                        measured.set(p.y*cols+p.x);
+                        measuredInCol[p.x]++;
+                        measuredInRow[p.y]++;
+                    }
+                    if(measuredWidths[p.x]<w) {measuredWidths[p.x] = w;}
+                    if(measuredHeights[p.y]<h) {measuredHeights[p.y] = h;}
                 }
+                if(colWidths[p.x]<w) {colWidths[p.x] = w;}
+                if(rowHeights[p.y]<h) {rowHeights[p.y] = h;}
             }
-            
-            //We add the sum as last element
-            int sum = colSpace;
-            for(int width : widths) {sum+=width+colSpace;}
-            widths.add(sum);
-            return widths;
+            for(int j=0; j<cols; j++) {
+                int w = measuredInCol[j]<rows ? Math.max(measuredWidths[j], estimator.estimateColumnWidth(target, j)) : measuredWidths[j];
+                if(colWidths[j]<w) {colWidths[j] = w;}
+            }
+            for(int i=0; i<rows; i++) {
+                int h = measuredInRow[i]<cols ? Math.max(measuredHeights[i], estimator.estimateRowHeight(target, i)) : measuredHeights[i];
+                if(rowHeights[i]<h) {rowHeights[i] = h;}
+            }
+        }
+        
+        /** Compute the position of each column or row from their extents **/
+        private static int[] getStarts(int[] extents, int space, int offset, int[] starts) {
+            if(starts.length!=extents.length) {starts = new int[extents.length];}
+            int pos = offset;
+            for(int k=0; k<extents.length; k++) {
+                pos+=space;
+                starts[k] = pos;
+                pos+=extents[k];
+            }
+            return starts;
+        }
+        
+        /** Compute the position of the borders around each column or row from their extents **/
+        private static int[] getLines(int[] extents, int space) {
+            int[] lines = new int[extents.length+1];
+            int pos = space;
+            lines[0] = pos;
+            for(int k=0; k<extents.length; k++) {
+                pos+=extents[k]+space;
+                lines[k+1] = pos;
+            }
+            return lines;
         }
         
         @Override
         void paintLines(Graphics2D g, Container target, int offsetX, int offsetY) {
             if(border) {
-                int lw = getLineWidth();
-                int col = Math.max(colCellSpace, lw);
-                if(col!=colSpace) {colSpace=col; target.invalidate();}
-                int row = Math.max(rowCellSpace, lw);
-                if(row!=rowSpace) {rowSpace=row; target.invalidate();}
-                
-                LinkedList<Integer> widths = getColWidths(SIZE.CURRENT), heights = getRowHeights(SIZE.CURRENT);
-                int W = widths.removeLast(), H = heights.removeLast();
-                
+                //The borders are read once, as a new layout replaces them
+                int[] xs = colLines, ys = rowLines;
+                int left = offsetX+xs[0], right = offsetX+xs[xs.length-1];
+                int top = offsetY+ys[0], bottom = offsetY+ys[ys.length-1];
                 //verticals
-                int x = colSpace+offsetX;
-                g.drawLine(x, offsetY+rowSpace, x, H+offsetY);
-                for(Integer width : widths) {
-                    x+=width+colSpace;
-                    g.drawLine(x, offsetY+rowSpace, x, H+offsetY);
-                }
-                
+                for(int x : xs) {g.drawLine(offsetX+x, top, offsetX+x, bottom);}
                 //horizontals
-                int y = rowSpace+offsetY;
-                g.drawLine(offsetX+colSpace, y, W+offsetX, y);
-                for(Integer height : heights) {
-                    y+=height+rowSpace;
-                    g.drawLine(offsetX+colSpace, y, W+offsetX, y);
-                }
+                for(int y : ys) {g.drawLine(left, offsetY+y, right, offsetY+y);}
             }
         }
 
+        /** Leave room for the borders between the cells. This is done during the layout, which painting only reads **/
+        private void updateSpacing(Container target) {
+            int lw = border ? getLineWidth(target) : 0;
+            colSpace = Math.max(colCellSpace, lw);
+            rowSpace = Math.max(rowCellSpace, lw);
+        }
+
         @Override
         protected Dimension layoutSizeNoMargin(Container target, SIZE size) {
-            LinkedList<Integer> widths = getColWidths(size), heights = getRowHeights(size);
-            int W = widths.removeLast(), H = heights.removeLast();
-            return new Dimension(W+(widths.size()+1)*colSpace, H+(heights.size()+1)*rowSpace);
+            updateSpacing(target);
+            computeExtents(target, size);
+            return new Dimension(tableWidth+(cols+1)*colSpace, tableHeight+(rows+1)*rowSpace);
         }
 
         @Override
         protected void layoutContainer(Container target, int offsetX, int offsetY) {
-            LinkedList<Integer> widths = getColWidths(SIZE.CURRENT), heights = getRowHeights(SIZE.CURRENT);
-            int y = 0;
-            ListIterator<Integer> h = heights.listIterator();
-            for(LinkedList<Component> row : table) {
-                y+=rowSpace;
-                int x = 0;
-                ListIterator<Integer> w = widths.listIterator();
-                for(Component cell : row) {
-                    x+=colSpace;
-                    cell.setLocation(offsetX+x, offsetY+y);
-                    x+=w.next();
+            updateSpacing(target);
+            computeExtents(target, SIZE.CURRENT);
+            colX = getStarts(colWidths, colSpace, offsetX, colX);
+            rowY = getStarts(rowHeights, rowSpace, offsetY, rowY);
+            colLines = getLines(colWidths, colSpace);
+            rowLines = getLines(rowHeights, rowSpace);
+            if(isLazy()) {
+                for(Map.Entry<Component, Point> entry : positions.entrySet()) {
+                    Point p = entry.getValue();
+                    entry.getKey().setLocation(colX[p.x], rowY[p.y]);
+                }
+            } else {
+                for(int i=0; i<rows; i++) {
+                    Component[] row = table[i];
+                    for(int j=0; j<row.length; j++) {
+                        if(row[j]!=null) {row[j].setLocation(colX[j], rowY[i]);}
+                    }
                 }
-                y+=h.next();
             }
         }
 
         @Override
-        protected float layoutYAlignment(Container target, float lineHeight, float height) {
-            return 0.5f+lineHeight/(4f*height);
+        protected int layoutAscent(Container target, int lineAscent, int height) {
+            return Math.round(height/2f+lineAscent/4f);
         }
 
+        /**
+         * Place the component in the table.
+         * @param name the position of the cell, as "row,col"
+         * @param comp the cell
+         */
         @Override
         public void addLayoutComponent(String name, Component comp) {
-            if(name==null) name = "0,0";
-            String[] T = name.split(",");
-            int row,col;
-            if(T.length<2) {row=0;col=0;}
-            else {row = Integer.parseInt(T[0]); col = Integer.parseInt(T[1]);}
-            while(table.size()<row+1) {table.add(new LinkedList<Component>());}
-            LinkedList<Component> r = table.get(row);
-            while(r.size()<col+1) {r.add(new JPanel());}
-            r.set(col, comp);
+            int row = 0, col = 0;
+            int comma = name==null ? -1 : name.indexOf(',');
+            if(comma>0) {
+                row = Integer.parseInt(name.substring(0, comma).trim());
+                col = Integer.parseInt(name.substring(comma+1).trim());
+            }
+            addLayoutComponent(comp, row, col);
+        }
+        
+        /**
+         * Place the component in the table.
+         * @param comp the cell
+         * @param row the row of the cell
+         * @param col the column of the cell
+         */
+        public void addLayoutComponent(Component comp, int row, int col) {
+            if(isLazy()) {
+                positions.put(comp, new Point(col, row));
+                return;
+            }
+            if(row>=table.length) {table = Arrays.copyOf(table, Math.max(row+1, 2*table.length));}
+            for(int i=rows; i<=row; i++) {if(table[i]==null) {table[i] = new Component[0];}}
+            rows = Math.max(rows, row+1);
+            Component[] r = table[row];
+            if(col>=r.length) {table[row] = r = Arrays.copyOf(r, col+1);}
+            cols = Math.max(cols, col+1);
+            if(r[col]!=null) {positions.remove(r[col]);}
+            r[col] = comp;
+            positions.put(comp, new Point(col, row));
         }
 
         @Override
         public void removeLayoutComponent(Component comp) {
-            for(LinkedList<Component> row : table) {
-                row.remove(comp);
-            }
+            Point p = positions.remove(comp);
+            if(p!=null && !isLazy()) {table[p.y][p.x] = null;}
         }
         
     }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.components;
+
+/**
+ * The size of a formula: its width, and its height above and below the baseline.
+ * Instances are immutable and can be kept after the formula itself was discarded.
+ * @author François Billioud
+ */
+public final class MathMetrics {
+    /** Metrics of an empty formula **/
+    public static final MathMetrics EMPTY = new MathMetrics(0, 0, 0);
+
+    private final int width;
+    private final int ascent;
+    private final int descent;
+
+    /**
+     * Create the metrics of a formula.
+     * @param width the width of the formula
+     * @param ascent the height of the formula above the baseline
+     * @param descent the height of the formula below the baseline
+     */
+    public MathMetrics(int width, int ascent, int descent) {
+        this.width = width;
+        this.ascent = ascent;
+        this.descent = descent;
+    }
+
+    /**
+     * Read the metrics of a displayer that was laid out.
+     * @param displayer the displayer
+     * @return its current metrics
+     */
+    public static MathMetrics of(JMathDisplayer displayer) {
+        int height = displayer.getHeight();
+        int ascent = displayer.getBaseline(displayer.getWidth(), height);
+        return new MathMetrics(displayer.getWidth(), ascent, height-ascent);
+    }
+
+    public int getWidth() {return width;}
+    /** Height of the formula above the baseline **/
+    public int getAscent() {return ascent;}
+    /** Height of the formula below the baseline **/
+    public int getDescent() {return descent;}
+    public int getHeight() {return ascent+descent;}
+    /** The position of the baseline as a ratio of the height, as in {@link java.awt.Component#getAlignmentY()} **/
+    public float getAlignmentY() {return getHeight()==0 ? 0f : ascent/(float)getHeight();}
+
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof MathMetrics)) {return false;}
+        MathMetrics m = (MathMetrics) o;
+        return width==m.width && ascent==m.ascent && descent==m.descent;
+    }
+
+    @Override
+    public int hashCode() {
+        return (width*31+ascent)*31+descent;
+    }
+
+    @Override
+    public String toString() {
+        return "MathMetrics[width="+width+",ascent="+ascent+",descent="+descent+"]";
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.components;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.util.Enumeration;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Element;
+import javax.swing.text.Position;
+import javax.swing.text.StyleConstants;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLDocument;
+import javax.swing.text.html.StyleSheet;
+
+/**
+ * A View displaying a formula inside an HTMLDocument, for instance in a JEditorPane.
+ * The HTML parser of Swing doesn't know MathML: each MathML tag becomes a leaf element
+ * and the formula is spread among the siblings of the &lt;math&gt; element.
+ * This view, created for the &lt;math&gt; start tag, rebuilds the MathML from these
+ * siblings, and the {@link MathViewFactory} hides the other ones.
+ * No Swing component is kept for the formula: only its metrics are kept, and the
+ * painting uses a displayer borrowed from a {@link DisplayerPool}.
+ * @author François Billioud
+ */
+public class MathView extends View {
+    /** MathML elements that have no content **/
+    private static final String[] EMPTY_TAGS = {"none", "mprescripts", "mspace", "malignmark", "maligngroup"};
+
+    /** The pool providing the displayers used to measure and paint **/
+    private final DisplayerPool pool;
+    /** The MathML rebuilt from the document, or null if it must be read again **/
+    private String mathML;
+    private Font font;
+    private Color foreground;
+    /** The size of the formula, or null if it must be measured again **/
+    private MathMetrics metrics;
+
+    /**
+     * Create a view for the &lt;math&gt; start tag.
+     * @param elem the element of the &lt;math&gt; start tag
+     * @param pool the pool providing the displayers
+     */
+    public MathView(Element elem, DisplayerPool pool) {
+        super(elem);
+        this.pool = pool;
+    }
+
+    /** The MathML represented by this view **/
+    public String getMathML() {
+        if(mathML==null) {mathML = readMathML(getElement());}
+        return mathML;
+    }
+
+    /** The size of the formula **/
+    public MathMetrics getMetrics() {
+        if(metrics==null) {
+            readAttributes();
+            metrics = pool.measure(getMathML(), font, foreground);
+        }
+        return metrics;
+    }
+
+    private void readAttributes() {
+        if(font!=null) {return;}
+        Document doc = getDocument();
+        if(doc instanceof HTMLDocument) {
+            StyleSheet sheet = ((HTMLDocument)doc).getStyleSheet();
+            AttributeSet attributes = sheet.getViewAttributes(this);
+            font = sheet.getFont(attributes);
+            foreground = sheet.getForeground(attributes);
+        } else {
+            font = getContainer()==null ? new Font(Font.SERIF, Font.PLAIN, 12) : getContainer().getFont();
+            foreground = getContainer()==null ? Color.BLACK : getContainer().getForeground();
+        }
+    }
+
+    @Override
+    public float getPreferredSpan(int axis) {
+        MathMetrics m = getMetrics();
+        return axis==X_AXIS ? m.getWidth() : m.getHeight();
+    }
+
+    @Override
+    public float getAlignment(int axis) {
+        return axis==Y_AXIS ? getMetrics().getAlignmentY() : super.getAlignment(axis);
+    }
+
+    @Override
+    public void paint(Graphics g, Shape allocation) {
+        Rectangle r = allocation.getBounds();
+        Rectangle clip = g.getClipBounds();
+        if(clip!=null && !clip.intersects(r)) {return;}
+        readAttributes();
+        pool.paint(g, getMathML(), font, foreground, r.x, r.y+(r.height-getMetrics().getHeight())/2);
+    }
+
+    @Override
+    public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+        int p0 = getStartOffset(), p1 = getEndOffset();
+        if(pos<p0 || pos>p1) {throw new BadLocationException(pos+" not in range "+p0+","+p1, pos);}
+        Rectangle r = a.getBounds();
+        if(pos==p1) {r.x += r.width;}
+        r.width = 0;
+        return r;
+    }
+
+    @Override
+    public int viewToModel(float x, float y, Shape a, Position.Bias[] biasReturn) {
+        Rectangle r = a.getBounds();
+        biasReturn[0] = Position.Bias.Forward;
+        return x<r.x+r.width/2f ? getStartOffset() : getEndOffset();
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e, Shape a, ViewFactory f) {
+        mathML = null;
+        metrics = null;
+        font = null;
+        preferenceChanged(null, true, true);
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e, Shape a, ViewFactory f) {changedUpdate(e, a, f);}
+    @Override
+    public void removeUpdate(DocumentEvent e, Shape a, ViewFactory f) {changedUpdate(e, a, f);}
+
+    /** Check if the element is the end tag of an unknown tag, like &lt;/math&gt; **/
+    static boolean isEndTag(Element elem) {
+        return elem.getAttributes().isDefined(HTML.Attribute.ENDTAG);
+    }
+
+    /** Get the name of the element if it is a MathML tag, or null otherwise **/
+    static String getUnknownTagName(Element elem) {
+        Object name = elem.getAttributes().getAttribute(StyleConstants.NameAttribute);
+        return name instanceof HTML.UnknownTag ? name.toString() : null;
+    }
+
+    /**
+     * Check if the element is part of a formula: after a &lt;math&gt; start tag,
+     * and before the matching end tag.
+     * @param elem the element to check
+     * @return true if the element is inside a formula, or is its end tag
+     */
+    static boolean isInsideMath(Element elem) {
+        Element parent = elem.getParentElement();
+        if(parent==null) {return false;}
+        for(int i = parent.getElementIndex(elem.getStartOffset())-1; i>=0; i--) {
+            Element sibling = parent.getElement(i);
+            if("math".equals(getUnknownTagName(sibling))) {return !isEndTag(sibling);}
+        }
+        return false;
+    }
+
+    /**
+     * Rebuild the MathML string from the elements following the &lt;math&gt; start tag.
+     * @param start the element of the &lt;math&gt; start tag
+     * @return the MathML string
+     */
+    static String readMathML(Element start) {
+        Element parent = start.getParentElement();
+        Document doc = start.getDocument();
+        StringBuilder mathML = new StringBuilder();
+        int depth = 0;
+        for(int i = parent.getElementIndex(start.getStartOffset()), n = parent.getElementCount(); i<n; i++) {
+            Element elem = parent.getElement(i);
+            String name = getUnknownTagName(elem);
+            if(name==null) {
+                try {
+                    appendEscaped(mathML, doc.getText(elem.getStartOffset(), elem.getEndOffset()-elem.getStartOffset()));
+                } catch (BadLocationException ex) {
+                    Logger.getLogger(MathView.class.getName()).log(Level.SEVERE, null, ex);
+                }
+            } else if(isEndTag(elem)) {
+                if(isEmptyTag(name)) {continue;}
+                mathML.append("</").append(name).append('>');
+                if(name.equals("math") && --depth==0) {break;}
+            } else {
+                mathML.append('<').append(name);
+                AttributeSet attributes = elem.getAttributes();
+                for(Enumeration<?> keys = attributes.getAttributeNames(); keys.hasMoreElements();) {
+                    Object key = keys.nextElement();
+                    if(key==StyleConstants.NameAttribute || key==HTML.Attribute.ENDTAG) {continue;}
+                    mathML.append(' ').append(key).append("=\"");
+                    appendEscaped(mathML, String.valueOf(attributes.getAttribute(key)));
+                    mathML.append('"');
+                }
+                mathML.append(isEmptyTag(name) ? "/>" : ">");
+                if(name.equals("math")) {depth++;}
+            }
+        }
+        return mathML.toString();
+    }
+
+    private static boolean isEmptyTag(String name) {
+        for(String tag : EMPTY_TAGS) {if(tag.equals(name)) {return true;}}
+        return false;
+    }
+
+    private static void appendEscaped(StringBuilder sb, String text) {
+        for(int i=0, n=text.length(); i<n; i++) {
+            char c = text.charAt(i);
+            switch(c) {
+                case '&' : sb.append("&amp;"); break;
+                case '<' : sb.append("&lt;"); break;
+                case '>' : sb.append("&gt;"); break;
+                case '"' : sb.append("&quot;"); break;
+                case '\n' : sb.append(' '); break;
+                default : sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * A view that takes no space and paints nothing.
+     * It replaces the views of the elements that are part of a formula.
+     */
+    static class HiddenView extends View {
+        HiddenView(Element elem) {super(elem);}
+        @Override
+        public float getPreferredSpan(int axis) {return 0;}
+        @Override
+        public void paint(Graphics g, Shape allocation) {}
+        @Override
+        public Shape modelToView(int pos, Shape a, Position.Bias b) throws BadLocationException {
+            Rectangle r = a.getBounds();
+            r.width = 0;
+            return r;
+        }
+        @Override
+        public int viewToModel(float x, float y, Shape a, Position.Bias[] biasReturn) {
+            biasReturn[0] = Position.Bias.Forward;
+            return getStartOffset();
+        }
+    }
+}
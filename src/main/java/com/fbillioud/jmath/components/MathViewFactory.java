@@ -0,0 +1,55 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.components;
+
+import javax.swing.text.Element;
+import javax.swing.text.View;
+import javax.swing.text.ViewFactory;
+import javax.swing.text.html.HTMLEditorKit;
+
+/**
+ * A ViewFactory displaying the MathML of an HTMLDocument with {@link MathView}s.
+ * To use it, either use a {@link MathEditorKit}, or return it from
+ * {@link HTMLEditorKit#getViewFactory()}.
+ * @author François Billioud
+ */
+public class MathViewFactory extends HTMLEditorKit.HTMLFactory {
+    /** Default number of displayers kept to paint the visible formulas **/
+    public static final int DEFAULT_POOL_SIZE = 128;
+
+    /** The displayers shared by all the views of this factory **/
+    private final DisplayerPool pool;
+
+    public MathViewFactory() {this(new DisplayerPool(DEFAULT_POOL_SIZE));}
+    /**
+     * Create a factory whose views paint with the displayers of this pool.
+     * @param pool the pool providing the displayers
+     */
+    public MathViewFactory(DisplayerPool pool) {
+        this.pool = pool;
+    }
+
+    public DisplayerPool getPool() {return pool;}
+
+    @Override
+    public View create(Element elem) {
+        if(elem.isLeaf()) {
+            if("math".equals(MathView.getUnknownTagName(elem)) && !MathView.isEndTag(elem)) {return new MathView(elem, pool);}
+            if(MathView.isInsideMath(elem)) {return new MathView.HiddenView(elem);}
+        }
+        return super.create(elem);
+    }
+}
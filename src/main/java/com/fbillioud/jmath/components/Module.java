@@ -19,9 +19,23 @@ import com.fbillioud.jmath.DrawShape;
 import com.fbillioud.jmath.JsoupTools;
 import com.fbillioud.jmath.MathComponent;
 import com.fbillioud.jmath.MathComponent.MathMLParsingException;
+import java.awt.Container;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.FontMetrics;
 import java.awt.Graphics2D;
 import java.awt.LayoutManager;
+import java.awt.Rectangle;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import javax.swing.JComponent;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
@@ -62,6 +76,16 @@ public abstract class Module {
         }
     }
     
+    /** Check if some children are only created when they are displayed **/
+    public boolean isLazy() {return false;}
+    
+    /**
+     * Create the children that are built lazily and intersect this area.
+     * Most modules create all their children at once and have nothing to do.
+     * @param area the area about to be displayed, in the coordinates of the support
+     */
+    public void prepare(Rectangle area) {}
+    
     /** Get the layout in charge of displaying the children. **/
     public LayoutManager getLayout() {
         return support.getLayout();
@@ -69,7 +93,7 @@ public abstract class Module {
     
     /** Set the child by its name **/
     public void setComponent(JComponent comp, String name) {
-        support.add(comp, name);
+        JMathDisplayer.add(support, comp, name);
         support.invalidate();
         comp.setName(name);
     }
@@ -112,7 +136,7 @@ public abstract class Module {
                     if(JMathDisplayer.isModuleAvailable(e)) {
                         newElement = new JMathDisplayer(e,parent);
                     } else {
-                        newElement = new JMathDisplayer(e.tagName("mrow"),parent);
+                        newElement = new JMathDisplayer(e, parent, true);
                     }
                     newElement.setForeground(JsoupTools.getColor(e));
                     setComponent(newElement, ""+name++);
@@ -161,9 +185,8 @@ public abstract class Module {
     public static class ModuleSqrt extends Module {
         public ModuleSqrt(Element mathElement, JComponent parent) {
             super(mathElement, parent, new MathLayout.SQRTLayout());
-            //si le contenu de la racine est en vrac, on le wrap dans un mrow. On fait de même si le childNode est un textNode. Sinon, erreur !
-            Element innerSqrt = (mathElement.childNodeSize()==1&&mathElement.children().size()==1) ? mathElement.child(0) : JsoupTools.parse("<mrow></mrow>").select("mrow").first().html(mathElement.html());
-            JMathDisplayer innerPane = new JMathDisplayer(innerSqrt, parent);
+            //si le contenu de la racine est en vrac, on l'affiche comme un mrow. On fait de même si le childNode est un textNode.
+            JMathDisplayer innerPane = (mathElement.childNodeSize()==1&&mathElement.children().size()==1) ? new JMathDisplayer(mathElement.child(0), parent) : new JMathDisplayer(mathElement, parent, true);
             setComponent(innerPane, "main");
         }
     }
@@ -198,9 +221,8 @@ public abstract class Module {
                 MathLayout.FencedLayout fencedLayout = (MathLayout.FencedLayout) getLayout();
                 fencedLayout.setBracket(mathElement.attr("close").trim().charAt(0),false);
             }
-            //si le contenu de la fenced est en vrac, on le wrap dans un mrow. On fait de même si le childNode est un textNode. Sinon, erreur !
-            Element fenced = (mathElement.childNodeSize()==1&&mathElement.children().size()==1) ? mathElement.child(0) : JsoupTools.parse("<mrow></mrow>").select("mrow").first().html(mathElement.html());
-            JMathDisplayer innerPane = new JMathDisplayer(fenced, parent);
+            //si le contenu de la fenced est en vrac, on l'affiche comme un mrow. On fait de même si le childNode est un textNode.
+            JMathDisplayer innerPane = (mathElement.childNodeSize()==1&&mathElement.children().size()==1) ? new JMathDisplayer(mathElement.child(0), parent) : new JMathDisplayer(mathElement, parent, true);
             setComponent(innerPane, "main");
         }
     }
@@ -319,24 +341,256 @@ public abstract class Module {
     }
     /** Handle a table: <mtable><mtr><mtd>a</mtd><mtd>b</mtd></mtr><mtr><mtd>c</mtd><mtd>d</mtd></mtr></mtable> **/
     public static class ModuleTable extends Module {
+        /** Tables with more cells than this create their cells only when they are displayed **/
+        private static volatile int lazyThreshold = 1000;
+        
+        /** The elements of the cells of a lazy table, by row then column. Null if the table is not lazy **/
+        private Element[][] cells;
+        /** Number of columns of the table **/
+        private int cols = 0;
+        /** The cells currently created in a lazy table, by row*cols+col **/
+        private final Map<Integer, JMathDisplayer> created = new HashMap<>();
+        
         public ModuleTable(Element mathElement, JComponent parent) {
             super(mathElement, parent, new MathLayout.TableLayout());
-            int i=0, j=0;
+            List<Element[]> rows = new LinkedList<>();
+            int count = 0;
             for(Element rowElement : mathElement.children()) {
                 if(rowElement.tagName().equals("mtr") || rowElement.tagName().equals("mlabeledtr")) {
-                    for(Element cellElement : rowElement.children()) {
-                        JMathDisplayer cell = new JMathDisplayer(cellElement, parent);
+                    Element[] row = rowElement.children().toArray(new Element[0]);
+                    rows.add(row);
+                    count+=row.length;
+                    cols = Math.max(cols, row.length);
+                }
+            }
+            MathLayout.TableLayout tableLayout = (MathLayout.TableLayout) getLayout();
+            if(count>lazyThreshold) {
+                cells = rows.toArray(new Element[rows.size()][]);
+                tableLayout.setLazy(cells.length, cols, new ContentEstimator(cells, cols));
+            } else {
+                int i=0;
+                for(Element[] row : rows) {
+                    for(int j=0; j<row.length; j++) {
+                        JMathDisplayer cell = new JMathDisplayer(row[j], parent);
                         setComponent(cell, i+","+j);
-                        j++;
                     }
-                    j=0;
                     i++;
                 }
             }
-            MathLayout.TableLayout tableLayout = (MathLayout.TableLayout) getLayout();
             if(mathElement.hasAttr("columnspacing")) tableLayout.setColSpacing(Integer.parseInt(mathElement.attr("columnspacing").trim()));
             if(mathElement.hasAttr("rowspacing")) tableLayout.setRowSpacing(Integer.parseInt(mathElement.attr("rowspacing").trim()));
         }
+        
+        /** The number of cells above which the tables create their cells only when they are displayed **/
+        public static int getLazyThreshold() {return lazyThreshold;}
+        /**
+         * Set the number of cells above which the tables create their cells only when they are displayed.
+         * Only the tables created afterwards are affected.
+         * @param cells the number of cells, or Integer.MAX_VALUE to create all the cells at once
+         */
+        public static void setLazyThreshold(int cells) {lazyThreshold = cells;}
+        
+        @Override
+        public boolean isLazy() {return cells!=null;}
+        
+        /**
+         * Create the cells of this area and release the cells far from it. The size
+         * of the columns and rows is refined as the cells get measured.
+         * This changes the components of the table, so it must not be called while painting.
+         * @param area the visible area, in the coordinates of the support
+         */
+        @Override
+        public void prepare(Rectangle area) {
+            if(cells==null || cells.length==0 || cols==0) {return;}
+            MathLayout.TableLayout tableLayout = (MathLayout.TableLayout) getLayout();
+            int r0 = tableLayout.getRowAt(area.y), r1 = tableLayout.getRowAt(area.y+area.height);
+            int c0 = tableLayout.getColumnAt(area.x), c1 = tableLayout.getColumnAt(area.x+area.width);
+            //The cells are kept a little while after they leave the area, to scroll back cheaply
+            int rowMargin = 2*(r1-r0+1), colMargin = 2*(c1-c0+1);
+            boolean changed = false;
+            for(Iterator<Map.Entry<Integer, JMathDisplayer>> iter = created.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry<Integer, JMathDisplayer> entry = iter.next();
+                int i = entry.getKey()/cols, j = entry.getKey()%cols;
+                if(i<r0-rowMargin || i>r1+rowMargin || j<c0-colMargin || j>c1+colMargin) {
+                    support.remove(entry.getValue());
+                    iter.remove();
+                    changed = true;
+                }
+            }
+            //The missing cells are built together, which lets large areas be built in parallel
+            List<Integer> indexes = new ArrayList<>();
+            List<Element> elements = new ArrayList<>();
+            for(int i=r0; i<=r1; i++) {
+                for(int j=c0; j<=c1 && j<cells[i].length; j++) {
+                    if(created.containsKey(i*cols+j)) {continue;}
+                    indexes.add(i*cols+j);
+                    elements.add(cells[i][j]);
+                }
+            }
+            List<JMathDisplayer> displayers = JMathDisplayer.build(elements, support);
+            for(int k=0; k<displayers.size(); k++) {
+                int index = indexes.get(k);
+                setComponent(displayers.get(k), index/cols+","+index%cols);
+                created.put(index, displayers.get(k));
+                changed = true;
+            }
+            if(changed) {
+                support.invalidate();
+                Dimension size = support.getSize();
+                support.doLayout();
+                if(!support.getPreferredSize().equals(size)) {support.revalidate();}
+                //The area may have been painted before its cells were created
+                support.repaint();
+            }
+        }
+        
+        /** Estimate the size of the cells from the length of their text and the imbrication of fractions **/
+        private static class ContentEstimator implements MathLayout.TableLayout.CellEstimator {
+            /** The widest content of each column in characters, and the tallest content of each row in lines **/
+            private final int[] colChars, rowLines;
+            /** The font used for the last estimates, and the size of a character in this font **/
+            private Font font;
+            private int charWidth, lineHeight;
+            
+            private ContentEstimator(Element[][] cells, int cols) {
+                colChars = new int[cols];
+                rowLines = new int[cells.length];
+                for(int i=0; i<cells.length; i++) {
+                    for(int j=0; j<cells[i].length; j++) {
+                        colChars[j] = Math.max(colChars[j], cells[i][j].text().length());
+                        rowLines[i] = Math.max(rowLines[i], estimateLines(cells[i][j]));
+                    }
+                }
+            }
+            
+            /** The number of text lines this element is expected to occupy **/
+            private static int estimateLines(Element root) {
+                //Post-order traversal from a stack, as the cells can be very deep. The lines of
+                //each element are pushed on the results, where its parent pops them.
+                Deque<Element> stack = new ArrayDeque<>();
+                Deque<Boolean> expanded = new ArrayDeque<>();
+                Deque<Integer> results = new ArrayDeque<>();
+                stack.push(root);
+                expanded.push(false);
+                while(!stack.isEmpty()) {
+                    Element e = stack.pop();
+                    if(!expanded.pop()) {
+                        stack.push(e);
+                        expanded.push(true);
+                        for(Element child : e.children()) {
+                            stack.push(child);
+                            expanded.push(false);
+                        }
+                        continue;
+                    }
+                    int max = 0, sum = 0;
+                    for(int k=e.children().size(); k>0; k--) {
+                        int lines = results.pop();
+                        max = Math.max(max, lines);
+                        sum += lines;
+                    }
+                    switch(e.tagName()) {
+                        case "mfrac" :
+                        case "munder" :
+                        case "mover" :
+                        case "munderover" :
+                        case "mtable" : results.push(Math.max(1, sum)); break;
+                        default : results.push(Math.max(1, max)); break;
+                    }
+                }
+                return results.pop();
+            }
+            
+            private void setFont(Container target) {
+                Font f = target.getFont();
+                if(f==null || f.equals(font)) {return;}
+                font = f;
+                FontMetrics fm = target.getFontMetrics(f);
+                charWidth = fm.charWidth('0');
+                lineHeight = fm.getHeight();
+            }
+            
+            @Override
+            public int estimateColumnWidth(Container target, int col) {
+                setFont(target);
+                return colChars[col]*charWidth;
+            }
+            
+            @Override
+            public int estimateRowHeight(Container target, int row) {
+                setFont(target);
+                return rowLines[row]*lineHeight;
+            }
+        }
+    }
+    /**
+     * Handle an action: <maction actiontype="toggle" selection="1"><mi>x</mi><mi>y</mi></maction>.
+     * Only the selected branch is displayed. The other branches are kept as elements,
+     * and their components are only created the first time they are selected.
+     * A click on a toggle selects the next branch. A tooltip displays the text of
+     * its second child when the mouse is over the first one.
+     **/
+    public static class ModuleAction extends Module {
+        /** The branches of the action **/
+        private final Element[] branches;
+        /** The components of the branches already displayed **/
+        private final JMathDisplayer[] created;
+        /** The index of the branch displayed, from 0 **/
+        private int selection = -1;
+        
+        public ModuleAction(Element mathElement, JComponent parent) {
+            super(mathElement, parent, new MathLayout.RowLayout());
+            branches = mathElement.children().toArray(new Element[0]);
+            created = new JMathDisplayer[branches.length];
+            String type = mathElement.attr("actiontype").trim();
+            if("toggle".equals(type)) {
+                parent.addMouseListener(new MouseAdapter() {
+                    @Override
+                    public void mouseClicked(MouseEvent e) {setSelection((selection+1)%Math.max(branches.length, 1));}
+                });
+            } else if("tooltip".equals(type) && branches.length>1) {
+                parent.setToolTipText(branches[1].text());
+            }
+            int selected = 0;
+            //Only the toggles can display another branch than the first one
+            if("toggle".equals(type)) {
+                try {
+                    selected = Integer.parseInt(mathElement.attr("selection").trim())-1;
+                } catch (NumberFormatException ex) {
+                    selected = 0;
+                }
+            }
+            show(selected);
+        }
+        
+        /** The index of the branch displayed, from 0 **/
+        public int getSelection() {return selection;}
+        /** The number of branches of the action **/
+        public int getBranchCount() {return branches.length;}
+        
+        /**
+         * Display this branch, creating its components the first time it is displayed.
+         * The selection attribute of the element is updated.
+         * @param index the index of the branch, from 0
+         */
+        public void setSelection(int index) {
+            if(branches.length==0) {return;}
+            show(index);
+            mathElement.attr("selection", ""+(selection+1));
+            support.revalidate();
+            support.repaint();
+        }
+        
+        /** Display this branch. The element is not modified, as it can be read by other threads while the formula is built **/
+        private void show(int index) {
+            if(branches.length==0) {return;}
+            index = Math.max(0, Math.min(index, branches.length-1));
+            if(index==selection) {return;}
+            if(selection>=0) {support.remove(created[selection]);}
+            selection = index;
+            if(created[index]==null) {created[index] = new JMathDisplayer(branches[index], support);}
+            setComponent(created[index], "main");
+        }
     }
     private static boolean isDrawable(String op) {
         return DrawShape.get(op.charAt(0), DrawShape.LEFT)!=null;
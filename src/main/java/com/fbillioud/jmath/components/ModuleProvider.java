@@ -0,0 +1,33 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.components;
+
+import java.util.Map;
+
+/**
+ * Service providing modules for custom MathML elements.
+ * Implementations are listed in
+ * <code>META-INF/services/com.fbillioud.jmath.components.ModuleProvider</code>
+ * and loaded by the {@link ModuleRegistry}.
+ * @author François Billioud
+ */
+public interface ModuleProvider {
+    /**
+     * Get the modules provided.
+     * @return the factories of the modules, by tag name
+     */
+    Map<String, ModuleRegistry.Factory> getModules();
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.components;
+
+import com.fbillioud.jmath.MathComponent.MathMLParsingException;
+import com.fbillioud.jmath.components.Module.*;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jsoup.nodes.Element;
+
+/**
+ * The modules that a {@link JMathDisplayer} can use, by MathML tag name.
+ * This is the only list of the supported tags. The modules of the {@link ModuleProvider}s
+ * found by the ServiceLoader are registered after the built-in ones, and can replace them.
+ * @author François Billioud
+ */
+public abstract class ModuleRegistry {
+    private ModuleRegistry() {throw new AssertionError("This class should not be instantiated");}
+
+    /** Create the module representing an element **/
+    public interface Factory {
+        /**
+         * Create the module of the element. The module adds the children it needs to the displayer.
+         * @param mathElement the MathML element to represent
+         * @param displayer the displayer that will draw the element
+         * @return the module
+         * @throws MathMLParsingException if the element cannot be represented
+         */
+        Module create(Element mathElement, JMathDisplayer displayer) throws MathMLParsingException;
+    }
+
+    /** The factories by tag name **/
+    private static final Map<String, Factory> FACTORIES = new ConcurrentHashMap<>();
+    static {
+        for(Builtin builtin : Builtin.values()) {
+            for(String tag : builtin.tags) {FACTORIES.put(tag, builtin);}
+        }
+        Iterator<ModuleProvider> providers = ServiceLoader.load(ModuleProvider.class).iterator();
+        while(true) {
+            try {
+                if(!providers.hasNext()) {break;}
+                FACTORIES.putAll(providers.next().getModules());
+            } catch (ServiceConfigurationError ex) {
+                Logger.getLogger(ModuleRegistry.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Register a module for this tag, replacing the previous one.
+     * Only the formulas built afterwards use it.
+     * @param tag the MathML tag name
+     * @param factory the factory of the module
+     */
+    public static void register(String tag, Factory factory) {FACTORIES.put(tag, factory);}
+
+    /**
+     * Get the factory of the module handling this tag.
+     * @param tag the MathML tag name
+     * @return the factory, or null if the tag is not supported
+     */
+    public static Factory get(String tag) {return FACTORIES.get(tag);}
+
+    /** Check if a module handles this tag **/
+    public static boolean isRegistered(String tag) {return FACTORIES.containsKey(tag);}
+
+    /** The tags handled by a module **/
+    public static Set<String> getTags() {return Collections.unmodifiableSet(FACTORIES.keySet());}
+
+    /** The modules of the MathML elements supported by JMath **/
+    private enum Builtin implements Factory {
+        ROW("mrow", "mlabeledtr", "mtr", "mtd", "mtext", "math", "mn", "mi") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {return new ModuleRow(e, d);}
+        },
+        OPERATOR("mo") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {
+                if(e.text().trim().equals("{") && e.nextElementSibling()!=null) {return new ModuleFenceOperator(e, d);}
+                return new ModuleRow(e, d);
+            }
+        },
+        ENCLOSE("menclose") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {
+                String notation = e.attr("notation");
+                //The element is not renamed, as other threads can read it while the formula is built
+                return "radical".equals(notation) ? new ModuleSqrt(e, d) : new ModuleEnclose(e, d, notation);
+            }
+        },
+        FRACTION("mfrac") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {return new ModuleFraction(e, d);}
+        },
+        SQRT("msqrt") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {return new ModuleSqrt(e, d);}
+        },
+        ROOT("mroot") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {return new ModuleRoot(e, d);}
+        },
+        FENCED("mfenced") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {return new ModuleFenced(e, d);}
+        },
+        OVER("mover") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) throws MathMLParsingException {return new ModuleOver(e, d);}
+        },
+        UNDER("munder") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) throws MathMLParsingException {return new ModuleUnder(e, d);}
+        },
+        UNDER_OVER("munderover") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) throws MathMLParsingException {return new ModuleUnderOver(e, d);}
+        },
+        SUB("msub") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {return new ModuleSub(e, d);}
+        },
+        SUP("msup") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {return new ModuleSup(e, d);}
+        },
+        SUB_SUP("msubsup") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) throws MathMLParsingException {return new ModuleSubSup(e, d);}
+        },
+        MULTISCRIPTS("mmultiscripts") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {return new ModuleMultiscript(e, d);}
+        },
+        TABLE("mtable") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {return new ModuleTable(e, d);}
+        },
+        ACTION("maction") {
+            @Override
+            public Module create(Element e, JMathDisplayer d) {return new ModuleAction(e, d);}
+        };
+
+        private final String[] tags;
+        Builtin(String... tags) {this.tags = tags;}
+    }
+}
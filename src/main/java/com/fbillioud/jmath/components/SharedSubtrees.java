@@ -0,0 +1,167 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.components;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.jsoup.nodes.Element;
+import org.jsoup.nodes.Node;
+import org.jsoup.nodes.TextNode;
+
+/**
+ * The identical subtrees of a formula. Each element is given an id, computed bottom-up
+ * from its tag, its attributes, its text and the ids of its children, so that two
+ * elements have the same id if and only if their subtrees are identical.
+ * A subtree repeated in the formula is displayed by childless displayers, which take
+ * their size from a single canonical displayer per style, and paint it.
+ * @author François Billioud
+ */
+final class SharedSubtrees {
+    /** The id of each element of the formula **/
+    private final Map<Element, Integer> ids = new IdentityHashMap<>();
+    /** The number of occurrences of each subtree in the formula, by id **/
+    private int[] counts = new int[16];
+    /** The subtrees that don't depend on their context, and display nothing interactive **/
+    private final BitSet shareable = new BitSet();
+    /** The canonical displayers, by subtree and style **/
+    private final Map<Key, JMathDisplayer> canonicals = new HashMap<>();
+
+    /**
+     * Compute the ids of the subtrees of this formula.
+     * @param root the root element of the formula
+     */
+    SharedSubtrees(Element root) {
+        Map<String, Integer> interned = new HashMap<>();
+        //Post-order traversal from a stack, as formulas can be very deep
+        Deque<Element> stack = new ArrayDeque<>();
+        Deque<Boolean> expanded = new ArrayDeque<>();
+        stack.push(root);
+        expanded.push(false);
+        while(!stack.isEmpty()) {
+            Element e = stack.pop();
+            if(!expanded.pop()) {
+                stack.push(e);
+                expanded.push(true);
+                for(Element child : e.children()) {
+                    stack.push(child);
+                    expanded.push(false);
+                }
+                continue;
+            }
+            String key = describe(e);
+            Integer id = interned.get(key);
+            if(id==null) {
+                id = interned.size();
+                interned.put(key, id);
+                if(isShareable(e)) {shareable.set(id);}
+            }
+            ids.put(e, id);
+            if(id>=counts.length) {counts = Arrays.copyOf(counts, 2*counts.length);}
+            counts[id]++;
+        }
+    }
+
+    /** Describe the element from its own content and the ids of its children **/
+    private String describe(Element e) {
+        StringBuilder sb = new StringBuilder(e.tagName()).append(e.attributes().html());
+        for(Node node : e.childNodes()) {
+            if(node instanceof Element) {sb.append('<').append(ids.get((Element)node)).append('>');}
+            else {
+                String text = node instanceof TextNode ? ((TextNode)node).getWholeText() : node.outerHtml();
+                sb.append('"').append(text.length()).append(':').append(text);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Check if the element and its children, whose ids are known, can be shared **/
+    private boolean isShareable(Element e) {
+        switch(e.tagName()) {
+            //Actions react to the mouse, and large tables build their cells when they are displayed
+            case "maction" :
+            case "mtable" : return false;
+            //A fence operator depends on the next element
+            case "mo" : if(e.text().trim().equals("{")) {return false;} break;
+            default : break;
+        }
+        for(Element child : e.children()) {
+            if(!shareable.get(ids.get(child))) {return false;}
+        }
+        return true;
+    }
+
+    /**
+     * Check if the element should be displayed by a shared displayer. This is the case
+     * for the shareable subtrees that also appear elsewhere than in the copies of their parent:
+     * inside a shared subtree, the children only shared by the copies of their parent are
+     * displayed normally by the canonical displayer.
+     * @param e the element to display
+     * @param parent the element of the parent displayer
+     * @return true if the element is displayed by a shared displayer
+     */
+    boolean isShared(Element e, Element parent) {
+        Integer id = ids.get(e), parentId = ids.get(parent);
+        return id!=null && parentId!=null && shareable.get(id) && counts[id]>counts[parentId];
+    }
+
+    /**
+     * Get the displayer of the element in this style, laid out at its preferred size.
+     * It is created the first time, and then shared by all the identical subtrees.
+     * @param e the element displayed
+     * @param font the font of the element
+     * @param foreground the color inherited by the element
+     * @return the canonical displayer
+     */
+    synchronized JMathDisplayer getCanonical(Element e, Font font, Color foreground) {
+        Key key = new Key(ids.get(e), font, foreground);
+        JMathDisplayer canonical = canonicals.get(key);
+        if(canonical==null) {
+            canonical = JMathDisplayer.createCanonical(e, this, font, foreground);
+            canonicals.put(key, canonical);
+        }
+        return canonical;
+    }
+
+    /** Identify a subtree with its style **/
+    private static final class Key {
+        private final int id;
+        private final Font font;
+        private final Color foreground;
+        private Key(int id, Font font, Color foreground) {
+            this.id = id;
+            this.font = font;
+            this.foreground = foreground;
+        }
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key)) {return false;}
+            Key k = (Key) o;
+            return id==k.id && (font==null ? k.font==null : font.equals(k.font))
+                    && (foreground==null ? k.foreground==null : foreground.equals(k.foreground));
+        }
+        @Override
+        public int hashCode() {
+            return (id*31+(font==null ? 0 : font.hashCode()))*31+(foreground==null ? 0 : foreground.hashCode());
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.render;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import javax.imageio.ImageIO;
+
+/**
+ * Pack the images of many formulas into a few large atlas images.
+ * <p>
+ * The images are placed on shelves: each one goes on the shelf of the closest height it fits in, or on a new
+ * shelf at the bottom of the atlas. When an image doesn't fit anymore, the atlas is cropped to
+ * its used height and written to the disk, and a new atlas is started. The index file
+ * <code>atlas.tsv</code> gets a line for each image of the atlas written:
+ * the name, the number of the atlas, x, y, the width, the height and the baseline, separated by tabs.
+ * <p>
+ * The names already in the index are kept when the writer is opened again, so that an
+ * interrupted batch can be resumed. The images can be added from several threads.
+ * @author François Billioud
+ */
+public class AtlasWriter implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** The name of the index file **/
+    public static final String INDEX = "atlas.tsv";
+    /** Empty pixels around each image, so that they don't bleed into each other when scaled **/
+    private static final int PADDING = 1;
+
+    private final File directory;
+    private final int size;
+    /** The names of the images already written **/
+    private final Set<String> done = new HashSet<>();
+    /** The atlas being filled **/
+    private Atlas current = null;
+    /** The number of the next atlas **/
+    private int next = 1;
+    private final Writer index;
+
+    /**
+     * Open the atlases of a directory.
+     * @param directory the directory of the atlases and of their index
+     * @param size the width and the maximum height of the atlases
+     * @throws IOException if the index cannot be read or written
+     */
+    public AtlasWriter(File directory, int size) throws IOException {
+        if(size<=2*PADDING) {throw new IllegalArgumentException("the atlases are too small: "+size);}
+        if(!directory.isDirectory() && !directory.mkdirs()) {throw new IOException("Cannot create the directory "+directory);}
+        this.directory = directory;
+        this.size = size;
+        File file = new File(directory, INDEX);
+        if(file.exists()) {
+            try(BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF8)) {
+                for(String line = reader.readLine(); line!=null; line = reader.readLine()) {
+                    String[] fields = line.split("\t");
+                    if(fields.length<7) {continue;}
+                    done.add(fields[0]);
+                    next = Math.max(next, Integer.parseInt(fields[1])+1);
+                }
+            }
+        }
+        index = Files.newBufferedWriter(file.toPath(), UTF8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    /** Check if the image of this name is already in an atlas written **/
+    public synchronized boolean contains(String name) {return done.contains(name);}
+
+    /**
+     * Add an image to the atlases. The atlas filled is written to the disk.
+     * @param name the name of the image in the index. It must not contain tabs or line breaks.
+     * @param image the image of the formula
+     * @param baseline distance between the top of the image and the baseline of the formula
+     * @throws IOException if the filled atlas cannot be written
+     */
+    public void add(String name, BufferedImage image, int baseline) throws IOException {
+        Atlas full = null;
+        synchronized(this) {
+            int w = image.getWidth()+2*PADDING, h = image.getHeight()+2*PADDING;
+            if(w>size || h>size) {
+                //The image gets its own atlas
+                Atlas own = new Atlas(next++, w, h);
+                own.draw(name, image, baseline, 0, 0);
+                full = own;
+            } else {
+                if(current==null) {current = new Atlas(next++, size, size);}
+                if(!current.place(name, image, baseline, w, h)) {
+                    full = current;
+                    current = new Atlas(next++, size, size);
+                    current.place(name, image, baseline, w, h);
+                }
+            }
+        }
+        if(full!=null) {write(full);}
+    }
+
+    /** Write the atlas being filled and close the index **/
+    @Override
+    public void close() throws IOException {
+        Atlas last;
+        synchronized(this) {
+            last = current;
+            current = null;
+        }
+        try {
+            if(last!=null) {write(last);}
+        } finally {
+            index.close();
+        }
+    }
+
+    /** Write the image of the atlas, then its lines of the index **/
+    private void write(Atlas atlas) throws IOException {
+        atlas.g.dispose();
+        File image = new File(directory, String.format("atlas-%05d.png", atlas.number));
+        File temporary = new File(directory, image.getName()+".tmp");
+        ImageIO.write(atlas.image.getSubimage(0, 0, atlas.image.getWidth(), Math.max(1, atlas.top)), "png", temporary);
+        Files.move(temporary.toPath(), image.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized(index) {
+            index.write(atlas.lines.toString());
+            index.flush();
+        }
+        synchronized(this) {done.addAll(atlas.names);}
+    }
+
+    /** An atlas image being filled **/
+    private static final class Atlas {
+        private final int number;
+        private final BufferedImage image;
+        private final Graphics2D g;
+        private final List<Shelf> shelves = new ArrayList<>();
+        /** The top of the free space, below the shelves **/
+        private int top = 0;
+        /** The lines of the index for this atlas **/
+        private final StringBuilder lines = new StringBuilder();
+        private final List<String> names = new ArrayList<>();
+
+        private Atlas(int number, int width, int height) {
+            this.number = number;
+            image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            g = image.createGraphics();
+            g.setComposite(AlphaComposite.Src);
+        }
+
+        /** Place the image on the shelf of the closest height it fits in, or on a new shelf **/
+        private boolean place(String name, BufferedImage img, int baseline, int w, int h) {
+            Shelf best = null;
+            for(Shelf shelf : shelves) {
+                if(shelf.height>=h && image.getWidth()-shelf.x>=w && (best==null || shelf.height<best.height)) {best = shelf;}
+            }
+            if(best==null) {
+                if(top+h>image.getHeight()) {return false;}
+                best = new Shelf(top, h);
+                shelves.add(best);
+                top += h;
+            }
+            draw(name, img, baseline, best.x, best.y);
+            best.x += w;
+            return true;
+        }
+
+        private void draw(String name, BufferedImage img, int baseline, int x, int y) {
+            g.drawImage(img, x+PADDING, y+PADDING, null);
+            top = Math.max(top, y+img.getHeight()+2*PADDING);
+            lines.append(name).append('\t').append(number).append('\t').append(x+PADDING).append('\t').append(y+PADDING)
+                    .append('\t').append(img.getWidth()).append('\t').append(img.getHeight()).append('\t').append(baseline).append('\n');
+            names.add(name);
+        }
+    }
+
+    /** A row of images of the same maximum height **/
+    private static final class Shelf {
+        private final int y, height;
+        /** The left of the free space of the shelf **/
+        private int x = 0;
+        private Shelf(int y, int height) {
+            this.y = y;
+            this.height = height;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.render;
+
+import java.awt.Font;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Render a directory of MathML files, or a file with one MathML formula per line, into images.
+ * The images are written to a temporary file and then renamed, so an interrupted run can be
+ * resumed: the formulas whose image exists are skipped. The throughput, the latencies and the
+ * failures are reported at the end.
+ * <pre>
+ * BatchRenderer [-threads n] [-format png|svg] [-size fontSize] [-cache directory] [-atlas size] [-force] input output
+ * </pre>
+ * The files of a directory are the .mml, .mathml and .xml files. Their images keep their relative path.
+ * The images of the lines of a file are named after the number of the line.
+ * With -atlas, the images are packed into PNG atlases by an {@link AtlasWriter}, and named in its index.
+ * The atlases are PNG images only, so -atlas cannot be used with -format svg.
+ * @author François Billioud
+ */
+public class BatchRenderer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] EXTENSIONS = {".mml", ".mathml", ".xml"};
+
+    private final MathRenderer renderer;
+    private final RenderCache cache;
+    private final RenderCache.Format format;
+    private final int threads;
+    /** Render the formulas whose image already exists **/
+    private final boolean force;
+    /** Size of the atlases, or 0 to write an image per formula **/
+    private int atlasSize = 0;
+    /** The atlases being written, or null to write an image per formula **/
+    private AtlasWriter atlas = null;
+
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    /** The duration of each rendering, in ns **/
+    private long[] latencies = new long[1024];
+    private int rendered = 0;
+
+    /**
+     * Create a batch renderer.
+     * @param renderer the renderer of the formulas
+     * @param cache the cache of the renders, or null to render every formula
+     * @param format the format of the images
+     * @param threads number of threads rendering the formulas
+     * @param force true to render the formulas whose image already exists
+     */
+    public BatchRenderer(MathRenderer renderer, RenderCache cache, RenderCache.Format format, int threads, boolean force) {
+        if(threads<1) {throw new IllegalArgumentException("at least one thread is needed: "+threads);}
+        this.renderer = renderer;
+        this.cache = cache;
+        this.format = format;
+        this.threads = threads;
+        this.force = force;
+    }
+
+    public int getAtlasSize() {return atlasSize;}
+    /**
+     * Pack the images into atlases instead of writing an image per formula.
+     * The atlases are PNG images, so the format of the batch must be PNG.
+     * @param atlasSize the size of the atlases, or 0 to write an image per formula
+     * @see AtlasWriter
+     */
+    public void setAtlasSize(int atlasSize) {
+        if(atlasSize>0 && format!=RenderCache.Format.PNG) {throw new IllegalArgumentException("the atlases are PNG images, not "+format);}
+        this.atlasSize = atlasSize;
+    }
+
+    /**
+     * Render the formulas of the input into the output directory.
+     * @param input a directory of MathML files, or a file with a formula on each line
+     * @param output the directory of the images
+     * @throws IOException if the input cannot be read
+     * @throws InterruptedException if the thread was interrupted while waiting for the rendering
+     */
+    public void run(File input, final File output) throws IOException, InterruptedException {
+        atlas = atlasSize>0 ? new AtlasWriter(output, atlasSize) : null;
+        //The queue is bounded: when it is full, the reading thread renders the formula itself
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(4*threads), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            if(input.isDirectory()) {
+                final Path root = input.toPath();
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) {
+                        String name = file.getFileName().toString();
+                        int dot = name.lastIndexOf('.');
+                        if(dot<0 || !Arrays.asList(EXTENSIONS).contains(name.substring(dot).toLowerCase(Locale.ROOT))) {return FileVisitResult.CONTINUE;}
+                        String relative = root.relativize(file).toString();
+                        final String image = relative.substring(0, relative.length()-name.length()+dot);
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    render(new String(Files.readAllBytes(file), UTF8), output, image, file.toString());
+                                } catch(IOException ex) {
+                                    fail(file.toString(), ex);
+                                }
+                            }
+                        });
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } else {
+                String name = input.getName();
+                final String prefix = name.lastIndexOf('.')>0 ? name.substring(0, name.lastIndexOf('.')) : name;
+                try(BufferedReader reader = Files.newBufferedReader(input.toPath(), UTF8)) {
+                    int number = 0;
+                    for(String line = reader.readLine(); line!=null; line = reader.readLine()) {
+                        number++;
+                        if(line.trim().isEmpty()) {continue;}
+                        final String mathML = line;
+                        final String image = String.format("%s-%08d", prefix, number);
+                        final String source = input+":"+number;
+                        executor.execute(new Runnable() {
+                            @Override
+                            public void run() {render(mathML, output, image, source);}
+                        });
+                    }
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            if(atlas!=null) {atlas.close();}
+        }
+    }
+
+    private String extension() {return format==RenderCache.Format.SVG ? ".svg" : ".png";}
+
+    /** Render the formula into its image file or into an atlas, unless it is already done **/
+    private void render(String mathML, File output, String name, String source) {
+        File image = new File(output, name+extension());
+        if(!force && (atlas==null ? image.exists() : atlas.contains(name))) {skipped.incrementAndGet(); return;}
+        long start = System.nanoTime();
+        try {
+            if(atlas!=null) {
+                RenderedMath render = cache==null ? renderer.render(mathML) : cache.render(mathML, renderer).toRenderedMath();
+                atlas.add(name, render.getImage(), render.getBaseline());
+            } else {
+                ByteBuffer png;
+                int width, height, baseline;
+                if(cache!=null) {
+                    CachedRender render = cache.render(mathML, renderer);
+                    png = render.getData();
+                    width = render.getWidth(); height = render.getHeight(); baseline = render.getBaseline();
+                } else {
+                    RenderedMath render = renderer.render(mathML);
+                    png = ByteBuffer.wrap(ImageEncoder.png(render.getImage()));
+                    width = render.getWidth(); height = render.getHeight(); baseline = render.getBaseline();
+                }
+                ByteBuffer data = format==RenderCache.Format.SVG ? ByteBuffer.wrap(ImageEncoder.svg(png, width, height, baseline).getBytes(UTF8)) : png;
+                write(data, image);
+            }
+            record(System.nanoTime()-start);
+        } catch(IOException | RuntimeException ex) {
+            fail(source, ex);
+        }
+    }
+
+    /** Write the file under a temporary name, and rename it once complete **/
+    private static void write(ByteBuffer data, File image) throws IOException {
+        File directory = image.getParentFile();
+        if(directory!=null && !directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Cannot create the directory "+directory);
+        }
+        Path temporary = new File(image.getPath()+".tmp").toPath();
+        try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while(data.hasRemaining()) {channel.write(data);}
+        }
+        Files.move(temporary, image.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized void record(long latency) {
+        if(rendered==latencies.length) {latencies = Arrays.copyOf(latencies, 2*rendered);}
+        latencies[rendered++] = latency;
+    }
+
+    private void fail(String source, Exception ex) {
+        failed.incrementAndGet();
+        System.err.println(source+": "+ex);
+    }
+
+    /** Number of formulas rendered **/
+    public synchronized int getRendered() {return rendered;}
+    /** Number of formulas skipped because their image existed **/
+    public int getSkipped() {return skipped.get();}
+    /** Number of formulas that couldn't be rendered **/
+    public int getFailed() {return failed.get();}
+
+    /**
+     * Get a percentile of the durations of the renderings.
+     * @param percentile the percentile, between 0 and 100
+     * @return the duration in ns, or 0 if nothing was rendered
+     */
+    public synchronized long getLatency(double percentile) {
+        if(rendered==0) {return 0;}
+        long[] sorted = Arrays.copyOf(latencies, rendered);
+        Arrays.sort(sorted);
+        //Nearest rank
+        int rank = (int) Math.ceil(percentile/100*rendered);
+        return sorted[Math.max(0, Math.min(rendered, rank)-1)];
+    }
+
+    /**
+     * Render a directory or a file of formulas, in headless mode.
+     * @param args the options, the input and the output directory
+     * @throws IOException if the input or the cache cannot be read
+     * @throws InterruptedException if the thread was interrupted
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        int threads = Runtime.getRuntime().availableProcessors();
+        RenderCache.Format format = RenderCache.Format.PNG;
+        float size = 20;
+        File cacheDirectory = null;
+        boolean force = false;
+        int atlasSize = 0;
+        int i = 0;
+        try {
+            for(; i<args.length && args[i].startsWith("-"); i++) {
+                switch(args[i]) {
+                    case "-threads" : threads = Integer.parseInt(args[++i]); break;
+                    case "-format" : format = RenderCache.Format.valueOf(args[++i].toUpperCase(Locale.ROOT)); break;
+                    case "-size" : size = Float.parseFloat(args[++i]); break;
+                    case "-cache" : cacheDirectory = new File(args[++i]); break;
+                    case "-atlas" : atlasSize = Integer.parseInt(args[++i]); break;
+                    case "-force" : force = true; break;
+                    default : throw new IllegalArgumentException("unknown option "+args[i]);
+                }
+            }
+            if(args.length-i!=2) {throw new IllegalArgumentException("an input and an output are needed");}
+            if(atlasSize>0 && format!=RenderCache.Format.PNG) {throw new IllegalArgumentException("the atlases are PNG images, -atlas cannot be used with -format svg");}
+        } catch(IllegalArgumentException | ArrayIndexOutOfBoundsException ex) {
+            System.err.println("Invalid arguments: "+ex.getMessage());
+            System.err.println("Usage: BatchRenderer [-threads n] [-format png|svg] [-size fontSize] [-cache directory] [-atlas size] [-force] input output");
+            System.exit(2);
+            return;
+        }
+        RenderCache cache = cacheDirectory==null ? null : new RenderCache(cacheDirectory);
+        MathRenderer renderer = new MathRenderer(new Font("Serif", Font.PLAIN, 1).deriveFont(size));
+        BatchRenderer batch = new BatchRenderer(renderer, cache, format, threads, force);
+        batch.setAtlasSize(atlasSize);
+        long start = System.nanoTime();
+        try {
+            batch.run(new File(args[i]), new File(args[i+1]));
+        } finally {
+            if(cache!=null) {cache.close();}
+        }
+        double seconds = (System.nanoTime()-start)/1e9;
+        System.out.println(String.format(Locale.ROOT, "Rendered %d formulas in %.1f s (%.1f formulas/s), %d skipped, %d failed",
+                batch.getRendered(), seconds, batch.getRendered()/seconds, batch.getSkipped(), batch.getFailed()));
+        System.out.println(String.format(Locale.ROOT, "Latency p50 %.2f ms, p99 %.2f ms",
+                batch.getLatency(50)/1e6, batch.getLatency(99)/1e6));
+        if(batch.getFailed()>0) {System.exit(1);}
+    }
+}
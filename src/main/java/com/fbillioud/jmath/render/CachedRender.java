@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.render;
+
+import com.fbillioud.jmath.render.RenderCache.Format;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.imageio.ImageIO;
+
+/**
+ * A formula rendered and stored by a {@link RenderCache}. The bytes are read from the mapped
+ * segment of the cache, without being copied.
+ * @author François Billioud
+ */
+public class CachedRender {
+    private final Format format;
+    private final int width;
+    private final int height;
+    private final int baseline;
+    /** The encoded image, read-only **/
+    private final ByteBuffer data;
+
+    CachedRender(Format format, int width, int height, int baseline, ByteBuffer data) {
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.baseline = baseline;
+        this.data = data;
+    }
+
+    /** The format of the encoded image **/
+    public Format getFormat() {return format;}
+    /** Width of the image **/
+    public int getWidth() {return width;}
+    /** Height of the image **/
+    public int getHeight() {return height;}
+    /** Distance between the top of the image and the baseline of the formula **/
+    public int getBaseline() {return baseline;}
+    /** Size in bytes of the encoded image **/
+    public int getLength() {return data.remaining();}
+
+    /** The encoded image, read-only, as stored in the cache **/
+    public ByteBuffer getData() {return data.duplicate();}
+
+    /** A copy of the encoded image **/
+    public byte[] getBytes() {
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Decode the image.
+     * @return the image and its baseline
+     * @throws IOException if the image cannot be decoded
+     * @throws IllegalStateException if the image is not a PNG
+     */
+    public RenderedMath toRenderedMath() throws IOException {
+        if(format!=Format.PNG) {throw new IllegalStateException("Only PNG images can be decoded, not "+format);}
+        return new RenderedMath(ImageIO.read(new ByteArrayInputStream(getBytes())), baseline);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.render;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.imageio.ImageIO;
+
+/**
+ * Encode the images of the formulas into the formats served by JMath.
+ * @author François Billioud
+ */
+public abstract class ImageEncoder {
+    private ImageEncoder() {throw new AssertionError("This class should not be instantiated");}
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    /**
+     * Encode the image in PNG.
+     * @param image the image
+     * @return the PNG bytes
+     * @throws IOException if the image cannot be encoded
+     */
+    public static byte[] png(BufferedImage image) throws IOException {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return png.toByteArray();
+    }
+
+    /**
+     * Encode the bytes in base64.
+     * @param data the bytes, which are not consumed
+     * @return the base64 string
+     */
+    public static String base64(ByteBuffer data) {
+        data = data.duplicate();
+        StringBuilder sb = new StringBuilder((data.remaining()+2)/3*4);
+        while(data.hasRemaining()) {
+            int n = Math.min(3, data.remaining());
+            int bits = 0;
+            for(int i=0; i<3; i++) {bits = bits<<8 | (i<n ? data.get() & 0xFF : 0);}
+            for(int i=0; i<4; i++) {sb.append(i<=n ? BASE64[bits>>>(18-6*i) & 0x3F] : '=');}
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Create an SVG image embedding a PNG image, as JMath doesn't draw vectors.
+     * The baseline is kept in a data-baseline attribute.
+     * @param png the PNG bytes, which are not consumed
+     * @param width width of the image
+     * @param height height of the image
+     * @param baseline distance between the top of the image and the baseline of the formula
+     * @return the SVG document
+     */
+    public static String svg(ByteBuffer png, int width, int height, int baseline) {
+        return "<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\""
+                +" width=\""+width+"\" height=\""+height+"\" viewBox=\"0 0 "+width+" "+height+"\" data-baseline=\""+baseline+"\">"
+                +"<image width=\""+width+"\" height=\""+height+"\" xlink:href=\"data:image/png;base64,"+base64(png)+"\"/></svg>";
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.render;
+
+import com.fbillioud.jmath.JsoupTools;
+import com.fbillioud.jmath.components.JMathDisplayer;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import org.jsoup.nodes.Element;
+
+/**
+ * Renders MathML into images without displaying any window.
+ * This class can be used in headless mode and from any thread, as long as
+ * each formula is rendered by a single thread.
+ * @author François Billioud
+ */
+public class MathRenderer {
+    /** Maximum number of layout passes after the first one **/
+    private static final int MAX_LAYOUT_PASSES = 4;
+    /** The font used for the formulas **/
+    private final Font font;
+    /** The default color of the formulas **/
+    private final Color foreground;
+    /** The color of the image background, or null for a transparent background **/
+    private final Color background;
+    /** The width the lines of the formulas must fit in, or -1 to render them on one line **/
+    private final int wrapWidth;
+
+    /**
+     * Create a renderer drawing black formulas on a transparent background.
+     * @param font the font to use
+     */
+    public MathRenderer(Font font) {this(font, Color.BLACK, null);}
+    /**
+     * Create a renderer.
+     * @param font the font to use
+     * @param foreground the default color of the formulas
+     * @param background the color of the background, or null for a transparent background
+     */
+    public MathRenderer(Font font, Color foreground, Color background) {this(font, foreground, background, -1);}
+    /**
+     * Create a renderer breaking long formulas into lines.
+     * @param font the font to use
+     * @param foreground the default color of the formulas
+     * @param background the color of the background, or null for a transparent background
+     * @param wrapWidth the width the lines must fit in, or -1 to render the formulas on one line
+     * @see JMathDisplayer#setWrapWidth(int)
+     */
+    public MathRenderer(Font font, Color foreground, Color background, int wrapWidth) {
+        this.font = font;
+        this.foreground = foreground;
+        this.background = background;
+        this.wrapWidth = wrapWidth;
+    }
+
+    public Font getFont() {return font;}
+    public Color getForeground() {return foreground;}
+    public Color getBackground() {return background;}
+    public int getWrapWidth() {return wrapWidth;}
+
+    /**
+     * Create a JMathDisplayer for this element and lay it out at its preferred size.
+     * @param mathElement the Jsoup MathML element, usually a &lt;math&gt; element
+     * @return the displayer, ready to be painted
+     */
+    public JMathDisplayer layout(Element mathElement) {
+        JMathDisplayer displayer = new JMathDisplayer(mathElement);
+        displayer.setFont(font);
+        displayer.setForeground(foreground);
+        if(wrapWidth>=0) {displayer.setWrapWidth(wrapWidth);}
+        layout(displayer);
+        return displayer;
+    }
+
+    /**
+     * Lay out a displayer that doesn't belong to a displayed window.
+     * Swing's validate() has no effect on such components, so the layout is done directly.
+     * @param displayer the displayer to lay out at its preferred size
+     */
+    public static void layout(JMathDisplayer displayer) {
+        //The first pass gives the children their size, needed to compute the alignments
+        displayer.setSize(displayer.getPreferredSize());
+        displayer.doLayout();
+        //The parts built lazily are created now that the layout gives their position. As they get
+        //measured, the size of the formula is refined, which can take a few more passes.
+        for(int pass=0; pass<MAX_LAYOUT_PASSES; pass++) {
+            displayer.prepare(new Rectangle(displayer.getSize()));
+            Dimension size = displayer.getPreferredSize();
+            if(size.equals(displayer.getSize())) {break;}
+            displayer.setSize(size);
+            displayer.doLayout();
+        }
+    }
+
+    /**
+     * Get the distance between the top of a laid out displayer and its baseline.
+     * @param displayer the displayer, laid out
+     * @return the baseline in pixels
+     */
+    public static int getBaseline(JMathDisplayer displayer) {
+        return displayer.getBaseline(displayer.getWidth(), displayer.getHeight());
+    }
+
+    /**
+     * Render the MathML string.
+     * @param mathML the MathML, like &lt;math&gt;&lt;mn&gt;1&lt;/mn&gt;&lt;/math&gt;
+     * @return the image and its baseline
+     */
+    public RenderedMath render(String mathML) {
+        return render(JsoupTools.parse(mathML).body().child(0));
+    }
+
+    /**
+     * Render the Jsoup MathML element.
+     * @param mathElement the Jsoup MathML element, usually a &lt;math&gt; element
+     * @return the image and its baseline
+     */
+    public RenderedMath render(Element mathElement) {return render(mathElement, null);}
+
+    /**
+     * Render the Jsoup MathML element, painting the tiles of the image concurrently.
+     * This is worth it for the very large formulas.
+     * @param mathElement the Jsoup MathML element, usually a &lt;math&gt; element
+     * @param rasterizer the rasterizer painting the tiles, or null to paint the image from this thread
+     * @return the image and its baseline
+     */
+    public RenderedMath render(Element mathElement, TiledRasterizer rasterizer) {
+        JMathDisplayer displayer = layout(mathElement);
+        if(rasterizer!=null) {return new RenderedMath(rasterizer.paint(displayer, background), getBaseline(displayer));}
+        int width = Math.max(displayer.getWidth(), 1), height = Math.max(displayer.getHeight(), 1);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            if(background!=null) {
+                g.setColor(background);
+                g.fillRect(0, 0, width, height);
+            }
+            displayer.paint(g);
+        } finally {
+            g.dispose();
+        }
+        return new RenderedMath(image, getBaseline(displayer));
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.render;
+
+import com.fbillioud.jmath.JsoupTools;
+import com.fbillioud.jmath.MathCanonicalizer;
+import com.fbillioud.jmath.MathKey;
+import java.awt.Color;
+import java.awt.Font;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jsoup.nodes.Element;
+
+/**
+ * A persistent cache of rendered formulas, keyed by the {@link MathKey} of the formula and the
+ * parameters of the rendering.
+ * <p>
+ * The renders are appended to segment files, which are read through memory mapping: a hit
+ * only looks up the in-memory index and returns a view of the mapped bytes. The index is
+ * rebuilt at startup by reading the headers of the records. Removed and evicted renders
+ * stay in the segments until a compaction copies the live records into new segments.
+ * <p>
+ * The MathML strings already rendered are also recorded, so that rendering them again
+ * doesn't even parse them. The identical renders requested at the same time are computed once.
+ * The cache can be shared by threads, but not by processes.
+ * @author François Billioud
+ */
+public class RenderCache implements Closeable {
+    /** The formats of the images stored **/
+    public enum Format {PNG, SVG}
+
+    /** Default size of the segment files **/
+    public static final int DEFAULT_SEGMENT_SIZE = 64*1024*1024;
+
+    /** The types of the records. 0 marks the end of a segment. **/
+    private static final int RENDER = 0x4A4D4301, ALIAS = 0x4A4D4302, REMOVED = 0x4A4D4303;
+    /** Size of the records without their data **/
+    private static final int RENDER_HEADER = 4+16+1+4*4, ALIAS_SIZE = 4+16+16, REMOVED_SIZE = 4+16;
+
+    private static final String PREFIX = "segment-", SUFFIX = ".dat";
+
+    private final File directory;
+    private final int segmentSize;
+    /** The size of the live renders above which the least recently used ones are evicted **/
+    private final long maxSize;
+
+    /** The renders by key **/
+    private final Map<MathKey, Entry> index = new ConcurrentHashMap<>();
+    /** The renders being computed, shared by the identical requests **/
+    private final ConcurrentMap<MathKey, FutureTask<CachedRender>> inFlight = new ConcurrentHashMap<>();
+    /** The keys of the renders, by MathML string and parameters **/
+    private final Map<MathKey, MathKey> aliases = new ConcurrentHashMap<>();
+    /** The segments, from the oldest to the one being written **/
+    private final List<Segment> segments = new ArrayList<>();
+    private Segment active;
+    /** Bytes of the records still in use, and of the records replaced or removed **/
+    private long liveBytes = 0, deadBytes = 0;
+    /** Bytes of the renders in use, compared to maxSize **/
+    private long renderBytes = 0;
+
+    /**
+     * Open or create a cache without size limit.
+     * @param directory the directory of the segment files
+     * @throws IOException if the segments cannot be read
+     */
+    public RenderCache(File directory) throws IOException {this(directory, Long.MAX_VALUE, DEFAULT_SEGMENT_SIZE);}
+
+    /**
+     * Open or create a cache.
+     * @param directory the directory of the segment files
+     * @param maxSize the size in bytes of the renders above which the least recently used are evicted
+     * @param segmentSize the size of the segment files
+     * @throws IOException if the segments cannot be read
+     */
+    public RenderCache(File directory, long maxSize, int segmentSize) throws IOException {
+        if(!directory.isDirectory() && !directory.mkdirs()) {throw new IOException("Cannot create the directory "+directory);}
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {return name.startsWith(PREFIX) && name.endsWith(SUFFIX);}
+        });
+        Arrays.sort(files);
+        for(int i=0; i<files.length; i++) {
+            boolean last = i==files.length-1;
+            Segment segment = new Segment(files[i], segmentId(files[i]), last ? Math.max(segmentSize, (int)files[i].length()) : (int)files[i].length(), last);
+            segments.add(segment);
+            load(segment);
+        }
+        if(segments.isEmpty()) {newSegment(segmentSize);}
+        else {active = segments.get(segments.size()-1);}
+    }
+
+    /**
+     * Get the key of a formula rendered in a format.
+     * @param formula the key of the formula, from {@link MathCanonicalizer}
+     * @param renderer the renderer of the formula
+     * @param format the format of the image
+     * @return the key of the render
+     */
+    public static MathKey key(MathKey formula, MathRenderer renderer, Format format) {
+        return MathCanonicalizer.key(formula, describe(renderer, format));
+    }
+
+    /** Describe what the image of a formula depends on, including the version of its key **/
+    private static String describe(MathRenderer renderer, Format format) {
+        Font font = renderer.getFont();
+        Color background = renderer.getBackground();
+        return "v"+MathCanonicalizer.VERSION+" "+format+" "+font.getName()+" "+font.getStyle()+" "+font.getSize2D()+" "
+                +Integer.toHexString(renderer.getForeground().getRGB())+" "
+                +(background==null ? "none" : Integer.toHexString(background.getRGB()))+" "+renderer.getWrapWidth();
+    }
+
+    /**
+     * Get a render from the cache.
+     * @param key the key of the render
+     * @return the render, or null if it is not in the cache
+     */
+    public CachedRender get(MathKey key) {
+        Entry entry = index.get(key);
+        if(entry==null) {return null;}
+        entry.lastAccess = System.nanoTime();
+        return entry.toCachedRender();
+    }
+
+    /**
+     * Get the PNG image of a formula, rendering it if it is not in the cache yet.
+     * A MathML string already rendered with this renderer is not parsed again, and the threads
+     * asking for a render being computed wait for it instead of computing it again.
+     * @param mathML the MathML string
+     * @param renderer the renderer of the formula
+     * @return the render
+     * @throws IOException if the render cannot be written in the cache
+     */
+    public CachedRender render(String mathML, MathRenderer renderer) throws IOException {
+        try {
+            return render(mathML, renderer, Long.MAX_VALUE);
+        } catch(TimeoutException ex) {
+            throw new IllegalStateException(ex);//There is no deadline
+        }
+    }
+
+    /**
+     * Get the PNG image of a formula, rendering it if it is not in the cache yet. The threads
+     * asking for a render being computed by another thread wait for it until the deadline.
+     * @param mathML the MathML string
+     * @param renderer the renderer of the formula
+     * @param deadline the time, as given by System.currentTimeMillis(), after which the
+     * threads stop waiting for the same render. A render started by this thread is not bounded.
+     * @return the render
+     * @throws IOException if the render cannot be written in the cache
+     * @throws TimeoutException if the same render computed by another thread is not ready at the deadline
+     */
+    public CachedRender render(String mathML, MathRenderer renderer, long deadline) throws IOException, TimeoutException {
+        String parameters = describe(renderer, Format.PNG);
+        MathKey alias = MathCanonicalizer.key(MathCanonicalizer.hash(mathML), parameters);
+        MathKey key = aliases.get(alias);
+        CachedRender render = key==null ? null : get(key);
+        if(render!=null) {return render;}
+
+        Element mathElement = JsoupTools.parse(mathML).body().child(0);
+        key = MathCanonicalizer.key(MathCanonicalizer.key(mathElement), parameters);
+        render = get(key);
+        if(render==null) {render = renderOnce(key, mathElement, renderer, deadline);}
+        putAlias(alias, key);
+        return render;
+    }
+
+    /**
+     * Render the formula and store it, unless the same render is already being computed.
+     * In this case, wait for it until the deadline and share its result.
+     */
+    private CachedRender renderOnce(final MathKey key, final Element mathElement, final MathRenderer renderer, long deadline) throws IOException, TimeoutException {
+        FutureTask<CachedRender> task = new FutureTask<>(new Callable<CachedRender>() {
+            @Override
+            public CachedRender call() throws IOException {
+                //The previous computation may have ended since the cache was read
+                CachedRender render = get(key);
+                if(render!=null) {return render;}
+                RenderedMath rendered = renderer.render(mathElement);
+                return put(key, Format.PNG, rendered.getWidth(), rendered.getHeight(), rendered.getBaseline(), ImageEncoder.png(rendered.getImage()));
+            }
+        });
+        FutureTask<CachedRender> running = inFlight.putIfAbsent(key, task);
+        if(running==null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(key, task);
+            }
+            running = task;
+        }
+        try {
+            return running.get(Math.max(0, deadline-System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the same render");
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof IOException) {throw (IOException) cause;}
+            if(cause instanceof RuntimeException) {throw (RuntimeException) cause;}
+            if(cause instanceof Error) {throw (Error) cause;}
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Store a render, replacing the previous one with this key.
+     * @param key the key of the render
+     * @param format the format of the image
+     * @param width width of the image
+     * @param height height of the image
+     * @param baseline distance between the top of the image and the baseline of the formula
+     * @param data the encoded image
+     * @return the render, read from the cache
+     * @throws IOException if the segment cannot be written
+     */
+    public synchronized CachedRender put(MathKey key, Format format, int width, int height, int baseline, byte[] data) throws IOException {
+        int size = RENDER_HEADER+data.length;
+        ByteBuffer buffer = reserve(size);
+        int start = buffer.position();
+        buffer.position(start+4);
+        buffer.putLong(key.getHigh()).putLong(key.getLow());
+        buffer.put((byte) format.ordinal()).putInt(width).putInt(height).putInt(baseline).putInt(data.length);
+        buffer.put(data);
+        commit(RENDER, start, buffer.position());
+        Entry entry = new Entry(active, start+RENDER_HEADER, data.length, format, width, height, baseline);
+        replace(index.put(key, entry));
+        liveBytes += size;
+        renderBytes += data.length;
+        if(renderBytes>maxSize) {evict();}
+        compactIfNeeded();
+        return entry.toCachedRender();
+    }
+
+    /**
+     * Remove a render from the cache.
+     * @param key the key of the render
+     * @return true if the render was in the cache
+     * @throws IOException if the segment cannot be written
+     */
+    public synchronized boolean remove(MathKey key) throws IOException {
+        Entry entry = index.remove(key);
+        if(entry==null) {return false;}
+        writeRemoved(key);
+        replace(entry);
+        compactIfNeeded();
+        return true;
+    }
+
+    /** Number of renders in the cache **/
+    public int size() {return index.size();}
+
+    /** Record that this MathML string is rendered with this key **/
+    private synchronized void putAlias(MathKey alias, MathKey key) throws IOException {
+        if(key.equals(aliases.get(alias))) {return;}
+        ByteBuffer buffer = reserve(ALIAS_SIZE);
+        int start = buffer.position();
+        buffer.position(start+4);
+        buffer.putLong(alias.getHigh()).putLong(alias.getLow()).putLong(key.getHigh()).putLong(key.getLow());
+        commit(ALIAS, start, buffer.position());
+        if(aliases.put(alias, key)!=null) {deadBytes += ALIAS_SIZE;} else {liveBytes += ALIAS_SIZE;}
+    }
+
+    private void writeRemoved(MathKey key) throws IOException {
+        ByteBuffer buffer = reserve(REMOVED_SIZE);
+        int start = buffer.position();
+        buffer.position(start+4);
+        buffer.putLong(key.getHigh()).putLong(key.getLow());
+        commit(REMOVED, start, buffer.position());
+        deadBytes += REMOVED_SIZE;
+    }
+
+    /** Account for a render that is not used anymore **/
+    private void replace(Entry old) {
+        if(old==null) {return;}
+        liveBytes -= RENDER_HEADER+old.length;
+        deadBytes += RENDER_HEADER+old.length;
+        renderBytes -= old.length;
+    }
+
+    /** Remove the least recently used renders, down to 3/4 of the maximum size **/
+    private void evict() throws IOException {
+        List<Map.Entry<MathKey, Entry>> entries = new ArrayList<>(index.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<MathKey, Entry>>() {
+            @Override
+            public int compare(Map.Entry<MathKey, Entry> a, Map.Entry<MathKey, Entry> b) {
+                return Long.compare(a.getValue().lastAccess, b.getValue().lastAccess);
+            }
+        });
+        for(Map.Entry<MathKey, Entry> e : entries) {
+            if(renderBytes<=maxSize/4*3) {break;}
+            index.remove(e.getKey());
+            writeRemoved(e.getKey());
+            replace(e.getValue());
+        }
+    }
+
+    /** Compact the segments when most of their bytes are not used anymore **/
+    private void compactIfNeeded() throws IOException {
+        if(deadBytes>liveBytes && deadBytes>segmentSize) {compact();}
+    }
+
+    /**
+     * Copy the renders in use into new segments, and delete the previous segments.
+     * The renders returned before stay readable.
+     * @throws IOException if the segments cannot be written
+     */
+    public synchronized void compact() throws IOException {
+        List<Segment> old = new ArrayList<>(segments);
+        newSegment(segmentSize);
+        liveBytes = deadBytes = renderBytes = 0;
+        for(Map.Entry<MathKey, Entry> e : index.entrySet()) {
+            Entry entry = e.getValue();
+            ByteBuffer data = entry.segment.buffer.duplicate();
+            data.position(entry.offset-RENDER_HEADER+4+16);
+            data.limit(entry.offset+entry.length);
+            int size = RENDER_HEADER+entry.length;
+            ByteBuffer buffer = reserve(size);
+            int start = buffer.position();
+            buffer.position(start+4);
+            buffer.putLong(e.getKey().getHigh()).putLong(e.getKey().getLow());
+            buffer.put(data);
+            commit(RENDER, start, buffer.position());
+            Entry moved = new Entry(active, start+RENDER_HEADER, entry.length, entry.format, entry.width, entry.height, entry.baseline);
+            moved.lastAccess = entry.lastAccess;
+            e.setValue(moved);
+            liveBytes += size;
+            renderBytes += entry.length;
+        }
+        Map<MathKey, MathKey> kept = new ConcurrentHashMap<>(aliases);
+        aliases.clear();
+        for(Map.Entry<MathKey, MathKey> e : kept.entrySet()) {
+            if(index.containsKey(e.getValue())) {putAlias(e.getKey(), e.getValue());}
+        }
+        active.buffer.force();
+        //The oldest first, so that a removal is never forgotten before the render it removes
+        for(Segment segment : old) {
+            segments.remove(segment);
+            if(!segment.file.delete()) {
+                Logger.getLogger(RenderCache.class.getName()).log(Level.SEVERE, "Cannot delete the segment {0}", segment.file);
+            }
+        }
+    }
+
+    /** Write the segment being written to the disk **/
+    @Override
+    public synchronized void close() {
+        active.buffer.force();
+    }
+
+    /** Get a buffer positioned where a record of this size can be written **/
+    private ByteBuffer reserve(int size) throws IOException {
+        if(active.end+size>active.buffer.capacity()) {
+            active.buffer.force();
+            newSegment(Math.max(segmentSize, size));
+        }
+        ByteBuffer buffer = active.writer;
+        buffer.position(active.end);
+        return buffer;
+    }
+
+    /** Mark the record as complete. Its type is written last, so that a record interrupted is ignored. **/
+    private void commit(int type, int start, int end) {
+        active.buffer.putInt(start, type);
+        active.end = end;
+    }
+
+    private void newSegment(int size) throws IOException {
+        int id = segments.isEmpty() ? 1 : segments.get(segments.size()-1).id+1;
+        File file = new File(directory, String.format("%s%08d%s", PREFIX, id, SUFFIX));
+        active = new Segment(file, id, size, true);
+        segments.add(active);
+    }
+
+    private static int segmentId(File file) {
+        String name = file.getName();
+        return Integer.parseInt(name.substring(PREFIX.length(), name.length()-SUFFIX.length()));
+    }
+
+    /** Read the headers of the records of a segment into the index **/
+    private void load(Segment segment) {
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+        while(position+REMOVED_SIZE<=buffer.limit()) {
+            int type = buffer.getInt(position);
+            MathKey key = new MathKey(buffer.getLong(position+4), buffer.getLong(position+12));
+            int size;
+            if(type==RENDER) {
+                if(position+RENDER_HEADER>buffer.limit()) {break;}
+                int length = buffer.getInt(position+RENDER_HEADER-4);
+                size = RENDER_HEADER+length;
+                if(length<0 || position+size>buffer.limit()) {break;}
+                Entry entry = new Entry(segment, position+RENDER_HEADER, length, Format.values()[buffer.get(position+20)],
+                        buffer.getInt(position+21), buffer.getInt(position+25), buffer.getInt(position+29));
+                replace(index.put(key, entry));
+                liveBytes += size;
+                renderBytes += length;
+            } else if(type==ALIAS) {
+                size = ALIAS_SIZE;
+                if(position+size>buffer.limit()) {break;}
+                MathKey target = new MathKey(buffer.getLong(position+20), buffer.getLong(position+28));
+                if(aliases.put(key, target)!=null) {deadBytes += size;} else {liveBytes += size;}
+            } else if(type==REMOVED) {
+                size = REMOVED_SIZE;
+                replace(index.remove(key));
+                deadBytes += size;
+            } else {
+                //The end of the segment, or a record interrupted
+                break;
+            }
+            position += size;
+        }
+        segment.end = position;
+    }
+
+    /** A segment file, mapped in memory **/
+    private static final class Segment {
+        private final File file;
+        private final int id;
+        private final MappedByteBuffer buffer;
+        /** The buffer used to append records, whose position changes **/
+        private final ByteBuffer writer;
+        /** The end of the last record **/
+        private int end = 0;
+
+        private Segment(File file, int id, int size, boolean writable) throws IOException {
+            this.file = file;
+            this.id = id;
+            //The mapping stays valid once the file is closed
+            try(RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r")) {
+                buffer = raf.getChannel().map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            writer = buffer.duplicate();
+        }
+    }
+
+    /** The location of a render in a segment, and its metadata **/
+    private static final class Entry {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final Format format;
+        private final int width, height, baseline;
+        private volatile long lastAccess = System.nanoTime();
+
+        private Entry(Segment segment, int offset, int length, Format format, int width, int height, int baseline) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.format = format;
+            this.width = width;
+            this.height = height;
+            this.baseline = baseline;
+        }
+
+        private CachedRender toCachedRender() {
+            ByteBuffer data = segment.buffer.duplicate();
+            data.position(offset);
+            data.limit(offset+length);
+            return new CachedRender(format, width, height, baseline, data.slice().asReadOnlyBuffer());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.render;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * The image of a formula, along with the position of its baseline.
+ * @author François Billioud
+ */
+public class RenderedMath {
+    /** The image of the formula **/
+    private final BufferedImage image;
+    /** Distance between the top of the image and the baseline of the formula **/
+    private final int baseline;
+
+    /**
+     * Create the result of a rendering.
+     * @param image the image of the formula
+     * @param baseline distance between the top of the image and the baseline
+     */
+    public RenderedMath(BufferedImage image, int baseline) {
+        this.image = image;
+        this.baseline = baseline;
+    }
+
+    /** The image of the formula **/
+    public BufferedImage getImage() {return image;}
+    /** Distance between the top of the image and the baseline of the formula **/
+    public int getBaseline() {return baseline;}
+    /** Width of the image **/
+    public int getWidth() {return image.getWidth();}
+    /** Height of the image **/
+    public int getHeight() {return image.getHeight();}
+}
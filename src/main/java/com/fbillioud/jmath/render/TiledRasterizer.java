@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.render;
+
+import com.fbillioud.jmath.components.JMathDisplayer;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Paint large formulas with several threads. The image is split into tiles, each painted
+ * by a thread into its own image, through a graphics clipped to the tile: the displayers
+ * outside of the tile are skipped. The tiles are copied into the final image.
+ * <p>
+ * The displayer must be laid out by {@link MathRenderer#layout(JMathDisplayer)}, and not be
+ * modified while it is painted: the tiles only read it.
+ * @author François Billioud
+ */
+public class TiledRasterizer {
+    /** Default width and height of the tiles **/
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    private final int tileSize;
+    private final int threads;
+
+    /** Create a rasterizer using all the processors **/
+    public TiledRasterizer() {this(DEFAULT_TILE_SIZE, Runtime.getRuntime().availableProcessors());}
+
+    /**
+     * Create a rasterizer.
+     * @param tileSize width and height of the tiles
+     * @param threads number of threads painting the tiles
+     */
+    public TiledRasterizer(int tileSize, int threads) {
+        if(tileSize<1) {throw new IllegalArgumentException("the tiles must not be empty: "+tileSize);}
+        if(threads<1) {throw new IllegalArgumentException("at least one thread is needed: "+threads);}
+        this.tileSize = tileSize;
+        this.threads = threads;
+    }
+
+    public int getTileSize() {return tileSize;}
+    public int getThreads() {return threads;}
+
+    /**
+     * Paint the displayer into a new image.
+     * @param displayer the displayer, laid out
+     * @param background the color of the background, or null for a transparent background
+     * @return the image, of the size of the displayer
+     */
+    public BufferedImage paint(final JMathDisplayer displayer, final Color background) {
+        int width = Math.max(displayer.getWidth(), 1), height = Math.max(displayer.getHeight(), 1);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        List<Rectangle> tiles = new ArrayList<>();
+        for(int y=0; y<height; y+=tileSize) {
+            for(int x=0; x<width; x+=tileSize) {
+                tiles.add(new Rectangle(x, y, Math.min(tileSize, width-x), Math.min(tileSize, height-y)));
+            }
+        }
+        if(tiles.size()==1 || threads==1) {
+            //Nothing to share: the image is painted at once
+            paint(displayer, background, image, new Rectangle(width, height));
+            return image;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tiles.size()));
+        try {
+            List<Future<BufferedImage>> futures = new ArrayList<>(tiles.size());
+            for(final Rectangle tile : tiles) {
+                futures.add(executor.submit(new Callable<BufferedImage>() {
+                    @Override
+                    public BufferedImage call() {
+                        BufferedImage img = new BufferedImage(tile.width, tile.height, BufferedImage.TYPE_INT_ARGB);
+                        paint(displayer, background, img, tile);
+                        return img;
+                    }
+                }));
+            }
+            for(int i=0; i<tiles.size(); i++) {
+                Rectangle tile = tiles.get(i);
+                image.getRaster().setDataElements(tile.x, tile.y, futures.get(i).get().getRaster());
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while painting the tiles", ex);
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof RuntimeException) {throw (RuntimeException) cause;}
+            if(cause instanceof Error) {throw (Error) cause;}
+            throw new IllegalStateException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+        return image;
+    }
+
+    /** Paint the area of the displayer into the image, whose origin is the top left corner of the area **/
+    private static void paint(JMathDisplayer displayer, Color background, BufferedImage image, Rectangle area) {
+        Graphics2D g = image.createGraphics();
+        try {
+            g.translate(-area.x, -area.y);
+            g.clipRect(area.x, area.y, area.width, area.height);
+            if(background!=null) {
+                g.setColor(background);
+                g.fillRect(area.x, area.y, area.width, area.height);
+            }
+            displayer.paint(g);
+        } finally {
+            g.dispose();
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.server;
+
+import com.fbillioud.jmath.MathExtractor;
+import com.fbillioud.jmath.MathExtractor.MathIsland;
+import com.fbillioud.jmath.render.CachedRender;
+import com.fbillioud.jmath.render.ImageEncoder;
+import com.fbillioud.jmath.render.MathRenderer;
+import com.fbillioud.jmath.render.RenderCache;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.awt.Font;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local HTTP service rendering MathML, built on the HTTP server of the JDK.
+ * <ul>
+ * <li><code>POST /render</code> renders the MathML of the body,</li>
+ * <li><code>POST /batch</code> renders each &lt;math&gt; element of the body and answers a JSON array,</li>
+ * <li><code>GET /health</code> answers "ok".</li>
+ * </ul>
+ * The parameters are <code>format</code> (png, svg or json for the size and baseline only),
+ * <code>size</code> (the font size) and <code>timeout</code> (the deadline of the request in ms).
+ * The formulas are rendered through the {@link RenderCache} by a bounded pool of threads.
+ * When its queue is full, the requests are refused with a 503 status. The formulas whose
+ * request is past its deadline are not rendered anymore.
+ * @author François Billioud
+ */
+public class MathServer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Logger LOGGER = Logger.getLogger(MathServer.class.getName());
+
+    private final HttpServer server;
+    private final MathRenderer renderer;
+    private final RenderCache cache;
+    /** The threads rendering the formulas **/
+    private final ThreadPoolExecutor workers;
+    /** The threads reading the requests and waiting for their renders **/
+    private final ExecutorService handlers;
+    /** Deadline of the requests without timeout parameter, in ms **/
+    private volatile long defaultTimeout = 10000;
+
+    /**
+     * Create a server. It doesn't listen before {@link #start()} is called.
+     * @param address the address to listen to, like localhost:8080. The port 0 picks a free port.
+     * @param renderer the renderer of the formulas, whose font size can be changed by the requests
+     * @param cache the cache of the renders
+     * @param threads number of threads rendering the formulas
+     * @param queueCapacity number of formulas that can wait for a thread before the requests are refused
+     * @throws IOException if the address cannot be bound
+     */
+    public MathServer(InetSocketAddress address, MathRenderer renderer, RenderCache cache, int threads, int queueCapacity) throws IOException {
+        if(threads<1) {throw new IllegalArgumentException("at least one thread is needed: "+threads);}
+        if(queueCapacity<1) {throw new IllegalArgumentException("the capacity must be positive: "+queueCapacity);}
+        this.renderer = renderer;
+        this.cache = cache;
+        workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new NamedThreadFactory("MathServer-render-"));
+        handlers = Executors.newFixedThreadPool(2*threads, new NamedThreadFactory("MathServer-http-"));
+        server = HttpServer.create(address, 0);
+        server.setExecutor(handlers);
+        server.createContext("/render", new Handler() {
+            @Override
+            void handle(HttpExchange exchange, String body, Map<String, String> parameters, MathRenderer renderer, long deadline) throws IOException {
+                render(exchange, body, parameters.get("format"), renderer, deadline);
+            }
+        });
+        server.createContext("/batch", new Handler() {
+            @Override
+            void handle(HttpExchange exchange, String body, Map<String, String> parameters, MathRenderer renderer, long deadline) throws IOException {
+                batch(exchange, body, parameters.get("format"), renderer, deadline);
+            }
+        });
+        server.createContext("/health", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                send(exchange, 200, "text/plain", "ok");
+            }
+        });
+    }
+
+    /** Start listening **/
+    public void start() {server.start();}
+
+    /**
+     * Stop listening and stop the threads. The cache is not closed.
+     * @param delay the maximum time in seconds to wait for the requests being handled
+     */
+    public void stop(int delay) {
+        server.stop(delay);
+        handlers.shutdown();
+        workers.shutdown();
+    }
+
+    /** The address the server listens to **/
+    public InetSocketAddress getAddress() {return server.getAddress();}
+
+    public long getDefaultTimeout() {return defaultTimeout;}
+    /** Set the deadline in ms of the requests without timeout parameter **/
+    public void setDefaultTimeout(long defaultTimeout) {this.defaultTimeout = defaultTimeout;}
+
+    /** The formats of the answers **/
+    private enum Format {PNG, SVG, JSON}
+
+    private static Format format(String format) {
+        if(format==null) {return Format.PNG;}
+        for(Format f : Format.values()) {
+            if(f.name().equalsIgnoreCase(format)) {return f;}
+        }
+        throw new IllegalArgumentException("unknown format "+format);
+    }
+
+    /** Render a single formula **/
+    private void render(HttpExchange exchange, String body, String format, MathRenderer renderer, long deadline) throws IOException {
+        Format f = format(format);
+        List<MathIsland> islands = MathExtractor.scan(new StringReader(body));
+        if(islands.isEmpty()) {send(exchange, 400, "text/plain", "The body must contain the MathML to render"); return;}
+        FutureTask<CachedRender> future;
+        try {
+            future = submit(islands.get(0).getSource(), renderer, deadline);
+        } catch(RejectedExecutionException ex) {
+            send(exchange, 503, "text/plain", "Too many formulas waiting"); return;
+        }
+        CachedRender render;
+        try {
+            render = future.get(remaining(deadline), TimeUnit.MILLISECONDS);
+        } catch(TimeoutException ex) {
+            cancel(future);
+            send(exchange, 504, "text/plain", "The rendering took too long"); return;
+        } catch(ExecutionException ex) {
+            //A formula too deep to be displayed is an error of the request
+            int status = ex.getCause() instanceof IllegalArgumentException ? 400 : 500;
+            send(exchange, status, "text/plain", "Cannot render the formula: "+ex.getCause()); return;
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            send(exchange, 503, "text/plain", "The server is stopping"); return;
+        }
+        exchange.getResponseHeaders().set("X-Width", ""+render.getWidth());
+        exchange.getResponseHeaders().set("X-Height", ""+render.getHeight());
+        exchange.getResponseHeaders().set("X-Baseline", ""+render.getBaseline());
+        switch(f) {
+            case PNG : send(exchange, 200, "image/png", render.getData()); break;
+            case SVG : send(exchange, 200, "image/svg+xml", svg(render)); break;
+            default : send(exchange, 200, "application/json", json(render, f).toString()); break;
+        }
+    }
+
+    /** Render each formula of the body **/
+    private void batch(HttpExchange exchange, String body, String format, MathRenderer renderer, long deadline) throws IOException {
+        Format f = format==null ? Format.JSON : format(format);
+        List<MathIsland> islands = MathExtractor.scan(new StringReader(body));
+        List<FutureTask<CachedRender>> futures = new ArrayList<>(islands.size());
+        try {
+            for(MathIsland island : islands) {futures.add(submit(island.getSource(), renderer, deadline));}
+        } catch(RejectedExecutionException ex) {
+            for(FutureTask<CachedRender> future : futures) {cancel(future);}
+            send(exchange, 503, "text/plain", "Too many formulas waiting"); return;
+        }
+        StringBuilder json = new StringBuilder("[");
+        for(FutureTask<CachedRender> future : futures) {
+            if(json.length()>1) {json.append(',');}
+            try {
+                json.append(json(future.get(remaining(deadline), TimeUnit.MILLISECONDS), f));
+            } catch(TimeoutException ex) {
+                cancel(future);
+                json.append("{\"error\":\"timeout\"}");
+            } catch(ExecutionException ex) {
+                json.append("{\"error\":").append(quote(String.valueOf(ex.getCause()))).append('}');
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                json.append("{\"error\":\"interrupted\"}");
+            }
+        }
+        send(exchange, 200, "application/json", json.append(']').toString());
+    }
+
+    /** Queue the render of a formula. It is skipped if it starts after the deadline **/
+    private FutureTask<CachedRender> submit(final String mathML, final MathRenderer renderer, final long deadline) {
+        FutureTask<CachedRender> task = new FutureTask<>(new Callable<CachedRender>() {
+            @Override
+            public CachedRender call() throws IOException, TimeoutException {
+                if(remaining(deadline)==0) {throw new TimeoutException("The request is past its deadline");}
+                return cache.render(mathML, renderer, deadline);
+            }
+        });
+        workers.execute(task);
+        return task;
+    }
+
+    /** Cancel a render, and free its place in the queue if it didn't start. A running render cannot be interrupted **/
+    private void cancel(FutureTask<CachedRender> future) {
+        future.cancel(false);
+        workers.remove(future);
+    }
+
+    private static long remaining(long deadline) {return Math.max(0, deadline-System.currentTimeMillis());}
+
+    /** The size and baseline of the render, and the image in the requested format **/
+    private static StringBuilder json(CachedRender render, Format format) {
+        StringBuilder json = new StringBuilder("{\"width\":").append(render.getWidth())
+                .append(",\"height\":").append(render.getHeight())
+                .append(",\"baseline\":").append(render.getBaseline());
+        if(format==Format.PNG) {json.append(",\"png\":\"").append(ImageEncoder.base64(render.getData())).append('"');}
+        else if(format==Format.SVG) {json.append(",\"svg\":").append(quote(svg(render)));}
+        return json.append('}');
+    }
+
+    private static String svg(CachedRender render) {
+        return ImageEncoder.svg(render.getData(), render.getWidth(), render.getHeight(), render.getBaseline());
+    }
+
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length()+2).append('"');
+        for(int i=0; i<s.length(); i++) {
+            char c = s.charAt(i);
+            if(c=='"' || c=='\\') {sb.append('\\').append(c);}
+            else if(c<' ') {sb.append(String.format("\\u%04x", (int) c));}
+            else {sb.append(c);}
+        }
+        return sb.append('"').toString();
+    }
+
+    private static void send(HttpExchange exchange, int status, String type, String body) throws IOException {
+        send(exchange, status, type, ByteBuffer.wrap(body.getBytes(UTF8)));
+    }
+    private static void send(HttpExchange exchange, int status, String type, ByteBuffer body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(status, body.remaining());
+        try(OutputStream out = exchange.getResponseBody()) {
+            Channels.newChannel(out).write(body);
+        }
+    }
+
+    /** Read the request and its parameters, and answer the errors **/
+    private abstract class Handler implements HttpHandler {
+        abstract void handle(HttpExchange exchange, String body, Map<String, String> parameters, MathRenderer renderer, long deadline) throws IOException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.currentTimeMillis();
+            try {
+                if(!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    send(exchange, 405, "text/plain", "Only POST is supported"); return;
+                }
+                Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+                long timeout = parameters.containsKey("timeout") ? Long.parseLong(parameters.get("timeout")) : defaultTimeout;
+                MathRenderer r = renderer;
+                if(parameters.containsKey("size")) {
+                    float size = Float.parseFloat(parameters.get("size"));
+                    if(!(size>0) || Float.isInfinite(size)) {throw new IllegalArgumentException("the size must be a positive number: "+parameters.get("size"));}
+                    Font font = r.getFont().deriveFont(size);
+                    r = new MathRenderer(font, r.getForeground(), r.getBackground(), r.getWrapWidth());
+                }
+                handle(exchange, read(exchange.getRequestBody()), parameters, r, start+timeout);
+            } catch(IllegalArgumentException ex) {
+                //Includes the NumberFormatException
+                send(exchange, 400, "text/plain", "Invalid parameter: "+ex.getMessage());
+            } catch(IOException | RuntimeException ex) {
+                LOGGER.log(Level.SEVERE, null, ex);
+                throw ex;
+            } finally {
+                exchange.close();
+            }
+        }
+    }
+
+    private static Map<String, String> parameters(String query) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        if(query==null) {return parameters;}
+        for(String parameter : query.split("&")) {
+            int i = parameter.indexOf('=');
+            if(i<0) {parameters.put(URLDecoder.decode(parameter, "UTF-8"), "");}
+            else {parameters.put(URLDecoder.decode(parameter.substring(0, i), "UTF-8"), URLDecoder.decode(parameter.substring(i+1), "UTF-8"));}
+        }
+        return parameters;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for(int n = in.read(buffer); n>=0; n = in.read(buffer)) {bytes.write(buffer, 0, n);}
+        return new String(bytes.toByteArray(), UTF8);
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+        NamedThreadFactory(String prefix) {this.prefix = prefix;}
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix+count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * Run a server on localhost, in headless mode.
+     * @param args the port, then optionally the directory of the cache, the font size and the number of threads
+     * @throws IOException if the server or the cache cannot be created
+     */
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        if(args.length<1) {
+            System.err.println("Usage: MathServer port [cacheDirectory [fontSize [threads]]]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        File directory = new File(args.length>1 ? args[1] : "jmath-cache");
+        float size = args.length>2 ? Float.parseFloat(args[2]) : 20;
+        int threads = args.length>3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+        final RenderCache cache = new RenderCache(directory);
+        final MathServer server = new MathServer(new InetSocketAddress("localhost", port),
+                new MathRenderer(new Font("Serif", Font.PLAIN, 1).deriveFont(size)), cache, threads, 64*threads);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop(1);
+                cache.close();
+            }
+        });
+        server.start();
+        System.out.println("JMath server listening on "+server.getAddress());
+    }
+}
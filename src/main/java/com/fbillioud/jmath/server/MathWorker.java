@@ -0,0 +1,259 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath.server;
+
+import com.fbillioud.jmath.render.CachedRender;
+import com.fbillioud.jmath.render.ImageEncoder;
+import com.fbillioud.jmath.render.MathRenderer;
+import com.fbillioud.jmath.render.RenderCache;
+import com.fbillioud.jmath.render.RenderedMath;
+import java.awt.Font;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A resident process rendering the formulas read from its standard input, for the programs
+ * that cannot call Java. The requests are rendered concurrently, and the results are written
+ * in the order of the requests, so that a client can send many requests before reading.
+ * <p>
+ * All the integers are big-endian. A request is:
+ * <ul>
+ * <li>an int, the length of the rest of the request. 0 ends the session,</li>
+ * <li>a byte, 0 to get the PNG image, 1 to get the size and baseline only,</li>
+ * <li>a float, the font size, or 0 for the size of the worker,</li>
+ * <li>the MathML, encoded in UTF-8.</li>
+ * </ul>
+ * A result is:
+ * <ul>
+ * <li>an int, the length of the rest of the result,</li>
+ * <li>a byte, 0 for a success, 1 for an error,</li>
+ * <li>for a success, 3 ints: the width, the height and the baseline, then the PNG image if asked,</li>
+ * <li>for an error, the message, encoded in UTF-8.</li>
+ * </ul>
+ * @author François Billioud
+ */
+public class MathWorker {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** The types of the requests **/
+    private static final byte PNG = 0, METRICS = 1;
+    /** The status of the results **/
+    private static final byte SUCCESS = 0, ERROR = 1;
+
+    private final MathRenderer renderer;
+    private final RenderCache cache;
+    private final int threads;
+    /** Maximum number of requests read but not answered yet **/
+    private final int capacity;
+
+    /**
+     * Create a worker.
+     * @param renderer the renderer of the formulas, whose font size can be changed by the requests
+     * @param cache the cache of the renders, or null to render every request
+     * @param threads number of threads rendering the formulas
+     * @param capacity maximum number of requests read but not answered yet.
+     * When this number is reached, the reading waits for the rendering.
+     */
+    public MathWorker(MathRenderer renderer, RenderCache cache, int threads, int capacity) {
+        if(threads<1) {throw new IllegalArgumentException("at least one thread is needed: "+threads);}
+        if(capacity<1) {throw new IllegalArgumentException("the capacity must be positive: "+capacity);}
+        this.renderer = renderer;
+        this.cache = cache;
+        this.threads = threads;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Answer the requests of the stream until it ends, or until a request of length 0.
+     * @param input the requests
+     * @param output the results. It is flushed whenever no result is waiting.
+     * @return the number of requests answered
+     * @throws IOException if the streams cannot be read or written
+     * @throws InterruptedException if the thread was interrupted while waiting for the rendering
+     */
+    public int run(InputStream input, OutputStream output) throws IOException, InterruptedException {
+        final DataInputStream in = new DataInputStream(input);
+        final BlockingQueue<Future<Result>> pending = new ArrayBlockingQueue<>(capacity);
+        final FutureTask<Result> end = new FutureTask<>(new Callable<Result>() {
+            @Override
+            public Result call() {return null;}
+        });
+        final AtomicReference<IOException> readError = new AtomicReference<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                //The buffer of the requests, reused while they fit
+                byte[] buffer = new byte[1<<12];
+                try {
+                    while(true) {
+                        int length;
+                        try {
+                            length = in.readInt();
+                        } catch(EOFException ex) {break;}
+                        if(length==0) {break;}
+                        if(length<5) {throw new IOException("Invalid request length: "+length);}
+                        final byte type = in.readByte();
+                        final float size = in.readFloat();
+                        if(buffer.length<length-5) {buffer = new byte[Math.max(length-5, 2*buffer.length)];}
+                        in.readFully(buffer, 0, length-5);
+                        final String mathML = new String(buffer, 0, length-5, UTF8);
+                        pending.put(executor.submit(new Callable<Result>() {
+                            @Override
+                            public Result call() {return render(mathML, type, size);}
+                        }));
+                    }
+                } catch(IOException ex) {
+                    readError.set(ex);
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    try {
+                        pending.put(end);
+                    } catch(InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }, "MathWorker-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        DataOutputStream out = new DataOutputStream(output);
+        WritableByteChannel channel = Channels.newChannel(out);
+        int count = 0;
+        try {
+            for(Future<Result> future = pending.take(); future!=end; future = pending.take()) {
+                Result result;
+                try {
+                    result = future.get();
+                } catch(ExecutionException ex) {
+                    result = new Result(ex.getCause());
+                }
+                result.write(out, channel);
+                count++;
+                if(pending.isEmpty()) {out.flush();}
+            }
+            out.flush();
+        } finally {
+            executor.shutdownNow();
+        }
+        if(readError.get()!=null) {throw readError.get();}
+        return count;
+    }
+
+    /** Render a formula, catching the errors to answer them **/
+    private Result render(String mathML, byte type, float size) {
+        try {
+            if(type!=PNG && type!=METRICS) {throw new IllegalArgumentException("Unknown request type: "+type);}
+            MathRenderer r = renderer;
+            if(size>0) {r = new MathRenderer(r.getFont().deriveFont(size), r.getForeground(), r.getBackground(), r.getWrapWidth());}
+            if(cache!=null) {
+                CachedRender render = cache.render(mathML, r);
+                return new Result(render.getWidth(), render.getHeight(), render.getBaseline(), type==PNG ? render.getData() : null);
+            }
+            RenderedMath rendered = r.render(mathML);
+            ByteBuffer data = null;
+            if(type==PNG) {data = ByteBuffer.wrap(ImageEncoder.png(rendered.getImage()));}
+            return new Result(rendered.getWidth(), rendered.getHeight(), rendered.getBaseline(), data);
+        } catch(Exception ex) {
+            return new Result(ex);
+        }
+    }
+
+    /** The result of a request **/
+    private static class Result {
+        private final int width, height, baseline;
+        private final ByteBuffer data;
+        private final byte[] error;
+
+        Result(int width, int height, int baseline, ByteBuffer data) {
+            this.width = width;
+            this.height = height;
+            this.baseline = baseline;
+            this.data = data;
+            this.error = null;
+        }
+        Result(Throwable error) {
+            this.width = this.height = this.baseline = 0;
+            this.data = null;
+            this.error = String.valueOf(error).getBytes(UTF8);
+        }
+
+        void write(DataOutputStream out, WritableByteChannel channel) throws IOException {
+            if(error!=null) {
+                out.writeInt(1+error.length);
+                out.writeByte(ERROR);
+                out.write(error);
+                return;
+            }
+            out.writeInt(1+12+(data==null ? 0 : data.remaining()));
+            out.writeByte(SUCCESS);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(baseline);
+            if(data!=null) {
+                ByteBuffer bytes = data.duplicate();
+                while(bytes.hasRemaining()) {channel.write(bytes);}
+            }
+        }
+    }
+
+    /**
+     * Answer the requests of the standard input on the standard output, in headless mode.
+     * Anything else printed by the program goes to the error output.
+     * @param args optionally the directory of the cache, the font size and the number of threads
+     * @throws IOException if the streams or the cache cannot be used
+     * @throws InterruptedException if the thread was interrupted
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        System.setProperty("java.awt.headless", "true");
+        OutputStream stdout = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1<<16);
+        System.setOut(new PrintStream(new FileOutputStream(FileDescriptor.err), true));
+        RenderCache cache = args.length>0 && !args[0].isEmpty() ? new RenderCache(new File(args[0])) : null;
+        float size = args.length>1 ? Float.parseFloat(args[1]) : 20;
+        int threads = args.length>2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        MathWorker worker = new MathWorker(new MathRenderer(new Font("Serif", Font.PLAIN, 1).deriveFont(size)), cache, threads, 64*threads);
+        try {
+            worker.run(new BufferedInputStream(new FileInputStream(FileDescriptor.in), 1<<16), stdout);
+        } finally {
+            if(cache!=null) {cache.close();}
+        }
+    }
+}
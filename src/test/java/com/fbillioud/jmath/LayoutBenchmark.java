@@ -0,0 +1,222 @@
+/*
+ * Copyright 2016 François Billioud.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.fbillioud.jmath;
+
+import com.fbillioud.jmath.components.JMathDisplayer;
+import com.fbillioud.jmath.components.MathLayout;
+import com.fbillioud.jmath.render.MathRenderer;
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.LayoutManager;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Measures how the layout of a formula scales with the number of nodes.
+ * Run it with <code>java -Djava.awt.headless=true com.fbillioud.jmath.LayoutBenchmark</code>.
+ * The time per node should stay about the same as the formulas grow, and each
+ * component should be measured once. The deepest formulas accepted check that the
+ * depth doesn't overflow the stack, and a deeper one must be rejected.
+ * <p>
+ * The nodes are the MathML elements of the formula. Subtree sharing is disabled, so that
+ * each node has its own components, except for the last runs: there, the copies of a
+ * subtree are childless components, and the canonical displayers they paint are neither
+ * counted nor measured with the formula.
+ * <p>
+ * A bordered table is also painted several times, to check that painting never lays it out again.
+ * @author François Billioud
+ */
+public class LayoutBenchmark {
+    private static final Font FONT = new Font("Serif", Font.PLAIN, 20);
+
+    private LayoutBenchmark() {}
+
+    /** A long row: x+x+...+x **/
+    static String wide(int n) {
+        StringBuilder sb = new StringBuilder("<math><mrow>");
+        for(int i=0; i<n; i++) {sb.append("<mi>x</mi><mo>+</mo>");}
+        return sb.append("</mrow></math>").toString();
+    }
+
+    /** Rows nested in each other: (x+(x+(x+...))) **/
+    static String deep(int n) {
+        StringBuilder sb = new StringBuilder("<math>");
+        for(int i=0; i<n; i++) {sb.append("<mrow><mi>x</mi><mo>+</mo>");}
+        for(int i=0; i<n; i++) {sb.append("</mrow>");}
+        return sb.append("</math>").toString();
+    }
+
+    /** A continued fraction of depth n: 1/(1+1/(1+...)) **/
+    static String continuedFraction(int n) {
+        StringBuilder sb = new StringBuilder("<math>");
+        for(int i=0; i<n; i++) {sb.append("<mfrac><mn>1</mn><mrow><mn>1</mn><mo>+</mo>");}
+        sb.append("<mi>x</mi>");
+        for(int i=0; i<n; i++) {sb.append("</mrow></mfrac>");}
+        return sb.append("</math>").toString();
+    }
+
+    /** Radicals nested in each other: sqrt(1+sqrt(1+...)) **/
+    static String radicals(int n) {
+        StringBuilder sb = new StringBuilder("<math>");
+        for(int i=0; i<n; i++) {sb.append("<msqrt><mn>1</mn><mo>+</mo>");}
+        sb.append("<mi>x</mi>");
+        for(int i=0; i<n; i++) {sb.append("</msqrt>");}
+        return sb.append("</math>").toString();
+    }
+
+    /** A complete binary tree of fractions of depth n **/
+    static String fractions(int n) {
+        StringBuilder sb = new StringBuilder("<math>");
+        appendFraction(sb, n);
+        return sb.append("</math>").toString();
+    }
+    private static void appendFraction(StringBuilder sb, int depth) {
+        if(depth==0) {sb.append("<mi>x</mi>"); return;}
+        sb.append("<mfrac><mrow>");
+        appendFraction(sb, depth-1);
+        sb.append("</mrow><mrow>");
+        appendFraction(sb, depth-1);
+        sb.append("</mrow></mfrac>");
+    }
+
+    /** A table of n by n cells, each holding a fraction **/
+    static String table(int n) {
+        StringBuilder sb = new StringBuilder("<math><mtable>");
+        for(int i=0; i<n; i++) {
+            sb.append("<mtr>");
+            for(int j=0; j<n; j++) {sb.append("<mtd><mfrac><mi>x</mi><mn>").append(i*n+j).append("</mn></mfrac></mtd>");}
+            sb.append("</mtr>");
+        }
+        return sb.append("</mtable></math>").toString();
+    }
+
+    /** Count the components of the formula, the number of times they were measured, and the number of times they were laid out **/
+    private static int[] count(Component root) {
+        int[] result = {0, 0, 0};
+        Deque<Component> stack = new ArrayDeque<>();
+        stack.push(root);
+        while(!stack.isEmpty()) {
+            Component c = stack.pop();
+            result[0]++;
+            if(c instanceof Container) {
+                LayoutManager layout = ((Container)c).getLayout();
+                if(layout instanceof MathLayout) {
+                    result[1] += ((MathLayout)layout).getMeasureCount();
+                    result[2] += ((MathLayout)layout).getLayoutCount();
+                }
+                for(Component child : ((Container)c).getComponents()) {stack.push(child);}
+            }
+        }
+        return result;
+    }
+
+    /** Paint the whole formula, scaled down to fit in a reasonable image **/
+    private static void paint(JMathDisplayer displayer) {
+        double scale = Math.min(1, 2000.0/Math.max(displayer.getWidth(), displayer.getHeight()));
+        int width = Math.max((int)(displayer.getWidth()*scale), 1), height = Math.max((int)(displayer.getHeight()*scale), 1);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.scale(scale, scale);
+            displayer.paint(g);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private static void run(String name, String mathML) {run(name, mathML, -1);}
+    private static void run(String name, String mathML, int wrapWidth) {
+        long start = System.nanoTime();
+        JMathDisplayer displayer = new JMathDisplayer(mathML);
+        displayer.setFont(FONT);
+        displayer.setWrapWidth(wrapWidth);
+        long built = System.nanoTime();
+        MathRenderer.layout(displayer);
+        long laidOut = System.nanoTime();
+        paint(displayer);
+        long painted = System.nanoTime();
+        int nodes = displayer.getMathMLElement().getAllElements().size();
+        int[] c = count(displayer);
+        System.out.printf("%-10s %8d nodes %8d components  build %7.1f ms  layout %7.1f ms  %6.0f ns/node  paint %7.1f ms  %d measures%n",
+                name, nodes, c[0], (built-start)/1e6, (laidOut-built)/1e6, (laidOut-built)/(double)nodes, (painted-laidOut)/1e6, c[1]);
+    }
+
+    /** Get the first displayer of the formula laid out as a table **/
+    private static JMathDisplayer findTable(JMathDisplayer root) {
+        Deque<Component> stack = new ArrayDeque<>();
+        stack.push(root);
+        while(!stack.isEmpty()) {
+            Component c = stack.pop();
+            if(c instanceof JMathDisplayer && ((JMathDisplayer)c).getLayout() instanceof MathLayout.TableLayout) {return (JMathDisplayer)c;}
+            if(c instanceof Container) {for(Component child : ((Container)c).getComponents()) {stack.push(child);}}
+        }
+        throw new IllegalStateException("The formula has no table");
+    }
+
+    /**
+     * Paint a bordered table several times. The spacing of the borders is computed
+     * during the layout, and painting only reads it: the table is never laid out again.
+     * @param n the number of rows and columns of the table
+     * @param times the number of paints
+     */
+    private static void repaint(int n, int times) {
+        JMathDisplayer displayer = new JMathDisplayer(table(n));
+        JMathDisplayer table = findTable(displayer);
+        ((MathLayout.TableLayout)table.getLayout()).setDrawBorder(true);
+        table.invalidate();
+        displayer.setFont(FONT);
+        MathRenderer.layout(displayer);
+        int[] before = count(displayer);
+        long start = System.nanoTime();
+        for(int i=0; i<times; i++) {paint(displayer);}
+        long painted = System.nanoTime();
+        int[] after = count(displayer);
+        if(after[1]!=before[1] || after[2]!=before[2]) {
+            throw new IllegalStateException("Painting a stable table measured it "+(after[1]-before[1])+" times and laid it out "+(after[2]-before[2])+" times");
+        }
+        System.out.printf("%-10s %8d cells  %d paints  %7.1f ms/paint  %d layouts before and after%n",
+                "repaint", n*n, times, (painted-start)/1e6/times, after[2]);
+    }
+
+    public static void main(String[] args) {
+        //Shared subtrees would be measured and painted once for all their copies
+        JMathDisplayer.setSubtreeSharing(false);
+        //Warm up
+        for(int i=0; i<5; i++) {run("warmup", wide(500)); run("warmup", deep(100));}
+        System.out.println();
+        for(int n=1000; n<=16000; n*=2) {run("wide", wide(n));}
+        for(int n=1000; n<=16000; n*=2) {run("wrapped", wide(n), 1000);}
+        for(int n=50; n<=400; n*=2) {run("deep", deep(n));}
+        for(int n=8; n<=12; n++) {run("fractions", fractions(n));}
+        repaint(30, 20);
+        //The traversals of the formulas don't use the stack: only Swing limits the depth
+        int depth = JMathDisplayer.MAX_DEPTH;
+        run("deep", deep(depth-2));
+        run("continued", continuedFraction((depth-2)/2));
+        run("radicals", radicals(depth-2));
+        try {
+            new JMathDisplayer(deep(depth));
+            throw new IllegalStateException("A formula deeper than "+depth+" elements was accepted");
+        } catch(IllegalArgumentException ex) {
+            System.out.println("rejected   "+ex.getMessage());
+        }
+        JMathDisplayer.setSubtreeSharing(true);
+        for(int n=8; n<=12; n++) {run("shared", fractions(n));}
+    }
+}